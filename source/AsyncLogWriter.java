@@ -0,0 +1,301 @@
+package source;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Logging off the message path. A producer claims the next slot of a fixed ring with one
+// getAndIncrement, fills it in and publishes it, never taking a lock or touching the disk.
+// One writer thread drains published slots in order into its LogSink and flushes the sink
+// once per batch, but no more often than every flushInterval while records trickle in.
+//
+// How safe a record is once it has been handed over depends on durability:
+//   NONE         - it reaches the operating system within flushInterval, a crash of the
+//                  machine may still lose it.
+//   INTERVAL     - and is forced to disk within syncInterval.
+//   GROUP_COMMIT - the writer forces after every batch and awaitDurable() returns once the
+//                  record's batch is on disk. Whatever is appended while one force runs
+//                  makes up the next batch, so concurrent senders share a force each.
+public class AsyncLogWriter implements ChatLog {
+    public enum Durability { NONE, INTERVAL, GROUP_COMMIT }
+
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final LogSink sink;
+    private final int mask;
+    private final AtomicLongArray published;  // slot i holds record seq once published[i] == seq
+    private final long[] times;
+    private final int[] senders;
+    private final String[] texts;
+    private final AtomicLong next;
+    private final AtomicInteger appending = new AtomicInteger();  // producers between the closed check and publishing
+    private volatile long consumed;  // every seq below this has been handed to the sink
+    private final long flushIntervalNanos;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private volatile long durable;  // every seq below this has been forced to disk
+    private final Object durableLock = new Object();  // awaitDurable() waits on it
+    private volatile long syncs;
+    private final LongAdder stalls = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // capacity is rounded up to a power of two, flushIntervalMillis 0 flushes every batch.
+    public AsyncLogWriter(LogSink sink, int capacity, long flushIntervalMillis) {
+        this(sink, capacity, flushIntervalMillis, 0);
+    }
+
+    public AsyncLogWriter(LogSink sink, int capacity, long flushIntervalMillis, long firstSeq) {
+        this(sink, capacity, flushIntervalMillis, firstSeq, Durability.NONE, 0);
+    }
+
+    // syncIntervalMillis only matters for INTERVAL.
+    public AsyncLogWriter(LogSink sink, int capacity, long flushIntervalMillis, long firstSeq, Durability durability,
+            long syncIntervalMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.sink = sink;
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+            published.set(i, -1);
+        this.times = new long[size];
+        this.senders = new int[size];
+        this.texts = new String[size];
+        this.next = new AtomicLong(firstSeq);
+        this.consumed = firstSeq;
+        this.durable = firstSeq;
+        this.flushIntervalNanos = flushIntervalMillis * 1_000_000;
+        this.durability = durability;
+        this.syncIntervalNanos = syncIntervalMillis * 1_000_000;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // -Dchat.logFlushMillis=100, how long a logged line may wait before it reaches the file.
+    public static long flushIntervalFromSystemProperties() {
+        return Long.getLong("chat.logFlushMillis", 100);
+    }
+
+    // -Dchat.durability=none|interval|group-commit
+    public static Durability durabilityFromSystemProperties() {
+        String name = System.getProperty("chat.durability", "none");
+        try {
+            return Durability.valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+        catch(IllegalArgumentException exc) {
+            // a mistyped -D should not keep the Server or Client from starting.
+            System.out.println("Opps! Unknown chat.durability '" + name
+                    + "', use none, interval or group-commit. Going on with none.");
+            return Durability.NONE;
+        }
+    }
+
+    // -Dchat.syncMillis=1000, how long a logged line may wait to be forced to disk (interval).
+    public static long syncIntervalFromSystemProperties() {
+        return Long.getLong("chat.syncMillis", 1000);
+    }
+
+    // queues a record and returns its sequence number, only waits if the ring is full. With
+    // GROUP_COMMIT the record is not safe yet, see awaitDurable().
+    @Override
+    public long append(int sender, String text) {
+        appending.incrementAndGet();  // close() lets the writer go only once this is back to 0
+        try {
+            if(closed)
+                throw new IllegalStateException("log is closed");
+            long seq = next.getAndIncrement();
+            while(seq - consumed > mask) {  // ring full, the writer is behind
+                if(!writer.isAlive())
+                    throw new IllegalStateException("log writer has stopped");
+                stalls.increment();
+                LockSupport.parkNanos(1000);
+            }
+            int i = (int) seq & mask;
+            times[i] = System.currentTimeMillis();
+            senders[i] = sender;
+            texts[i] = text;
+            published.set(i, seq);  // publishes the fields above along with the slot
+            if(durability == Durability.GROUP_COMMIT)
+                LockSupport.unpark(writer);  // someone is about to wait for it, start the batch now
+            return seq;
+        }
+        finally {
+            appending.decrementAndGet();
+        }
+    }
+
+    // with GROUP_COMMIT, waits until record seq, and every one before it, is on disk. Other
+    // modes do not wait. Throws if the log can not be written.
+    public void awaitDurable(long seq) throws IOException {
+        if(durability != Durability.GROUP_COMMIT)
+            return;
+        if(durable <= seq) {
+            synchronized(durableLock) {
+                while(durable <= seq && failure == null) {
+                    try {
+                        durableLock.wait();
+                    }
+                    catch(InterruptedException exc) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted waiting for record " + seq);
+                    }
+                }
+            }
+        }
+        if(durable <= seq)
+            throw failure;
+    }
+
+    private void drain() {
+        long seq = consumed;
+        long lastFlush = System.nanoTime();
+        long lastSync = lastFlush;
+        boolean dirty = false;     // written to the sink, not flushed
+        boolean unsynced = false;  // written to the sink, not forced
+        while(true) {
+            int i = (int) seq & mask;
+            if(published.get(i) == seq) {
+                write(seq, times[i], senders[i], texts[i]);
+                texts[i] = null;
+                seq++;
+                dirty = true;
+                unsynced = true;
+                if((seq & 255) == 0)
+                    consumed = seq;  // long batch, give producers their slots back as we go
+                continue;
+            }
+            consumed = seq;
+            long now = System.nanoTime();
+            if(durability == Durability.GROUP_COMMIT && unsynced) {
+                // end of a batch: force it, and look for the next one straight away.
+                flush();
+                sync(seq);
+                dirty = false;
+                unsynced = false;
+                lastFlush = now;
+                continue;
+            }
+            if(durability == Durability.INTERVAL && unsynced && now - lastSync >= syncIntervalNanos) {
+                flush();
+                sync(seq);
+                dirty = false;
+                unsynced = false;
+                lastFlush = lastSync = now;
+            }
+            if(dirty && now - lastFlush >= flushIntervalNanos) {
+                flush();
+                dirty = false;
+                lastFlush = now;
+            }
+            // appending first: once it is 0 every seq claimed before close() is published.
+            if(closed && appending.get() == 0 && seq == next.get())
+                break;
+            long wait = dirty ? Math.min(IDLE_PARK_NANOS, flushIntervalNanos - (now - lastFlush)) : IDLE_PARK_NANOS;
+            if(durability == Durability.INTERVAL && unsynced)
+                wait = Math.min(wait, syncIntervalNanos - (now - lastSync));
+            LockSupport.parkNanos(Math.max(1000, wait));
+        }
+        if(dirty)
+            flush();
+        if(unsynced && durability != Durability.NONE)
+            sync(seq);
+    }
+
+    // everything below seq has been flushed, now force it and let its waiters go.
+    private void sync(long seq) {
+        if(failure != null)
+            return;
+        try {
+            sink.sync();
+            syncs++;
+        }
+        catch(IOException exc) {
+            failed(exc);
+            return;
+        }
+        durable = seq;
+        if(durability == Durability.GROUP_COMMIT) {
+            synchronized(durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void write(long seq, long time, int sender, String text) {
+        if(failure != null)
+            return;
+        try {
+            sink.write(seq, time, sender, text);
+        }
+        catch(IOException exc) {
+            failed(exc);
+        }
+    }
+
+    private void flush() {
+        if(failure != null)
+            return;
+        try {
+            sink.flush();
+        }
+        catch(IOException exc) {
+            failed(exc);
+        }
+    }
+
+    // keeps draining so producers never block on a broken disk, but stops writing; anyone
+    // waiting for a record to be durable gets the failure instead.
+    private void failed(IOException exc) {
+        failure = exc;
+        System.out.println("Opps! Could Not Write The Log: " + exc);
+        synchronized(durableLock) {
+            durableLock.notifyAll();
+        }
+    }
+
+    // the sequence number the next append() gets.
+    public long getNextSeq() {
+        return next.get();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // forces to disk so far, with GROUP_COMMIT one per batch.
+    public long getSyncs() {
+        return syncs;
+    }
+
+    // times a producer found the ring full and had to wait for the writer.
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    // writes out everything appended so far, including appends that were under way when
+    // close() was called, then closes the sink. Appends after it throw.
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        }
+        catch(InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+    }
+}
@@ -0,0 +1,111 @@
+package source;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// What a connection does when its peer stops reading. Once the bytes waiting for the peer
+// would pass the high watermark the policy fires:
+//   DROP_OLDEST   - the oldest waiting messages are dropped down to the low watermark.
+//   DISCONNECT    - the peer is disconnected.
+//   PAUSE_READING - nothing more is read from the peers whose messages fill the backlog
+//                   until it drains to the low watermark, so senders slow to what the
+//                   slowest member takes instead of anything being lost. A member that
+//                   never reads holds its senders up until it goes; what still arrives
+//                   (the server's own messages, a sender's last read) is dropped past
+//                   twice the high watermark.
+// The counters are shared by every connection of the server using this instance.
+public class Backpressure {
+    public enum Policy { DROP_OLDEST, DISCONNECT, PAUSE_READING }
+
+    private final Policy policy;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder paused = new LongAdder();
+
+    public Backpressure(Policy policy, int lowWatermark, int highWatermark) {
+        if(lowWatermark < 0 || lowWatermark > highWatermark)
+            throw new IllegalArgumentException("need 0 <= lowWatermark <= highWatermark");
+        this.policy = policy;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    // -Dchat.backpressure=drop-oldest|disconnect|pause-reading
+    // -Dchat.lowWatermark=65536 -Dchat.highWatermark=262144 (bytes, 0 <= low <= high, high > 0)
+    public static Backpressure fromSystemProperties() {
+        String name = System.getProperty("chat.backpressure", "drop-oldest");
+        Policy policy;
+        try {
+            policy = Policy.valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+        catch(IllegalArgumentException exc) {
+            // a mistyped -D should not keep the server from starting.
+            System.out.println("Opps! Unknown chat.backpressure '" + name
+                    + "', use drop-oldest, disconnect or pause-reading. Going on with drop-oldest.");
+            policy = Policy.DROP_OLDEST;
+        }
+        int low = Integer.getInteger("chat.lowWatermark", 64 * 1024);
+        int high = Integer.getInteger("chat.highWatermark", 256 * 1024);
+        if(low < 0 || high <= 0 || low > high) {
+            System.out.println("Opps! chat.lowWatermark " + low + " and chat.highWatermark " + high
+                    + " need 0 <= low <= high and high > 0. Going on with 65536 and 262144.");
+            low = 64 * 1024;
+            high = 256 * 1024;
+        }
+        return new Backpressure(policy, low, high);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    // how many times a connection went past the high watermark.
+    public long getFired() {
+        return fired.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    public long getPaused() {
+        return paused.sum();
+    }
+
+    void recordFired() {
+        fired.increment();
+    }
+
+    void recordDropped(int messages) {
+        dropped.add(messages);
+    }
+
+    void recordDisconnected() {
+        disconnected.increment();
+    }
+
+    void recordPaused() {
+        paused.increment();
+    }
+
+    @Override
+    public String toString() {
+        return policy.name().toLowerCase().replace('_', '-') + " " + lowWatermark + "/" + highWatermark
+            + " bytes: fired=" + getFired() + " dropped=" + getDropped()
+            + " disconnected=" + getDisconnected() + " paused=" + getPaused();
+    }
+}
@@ -0,0 +1,162 @@
+package source;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Connection served by two blocking loops, the same read-a-message/write-a-message code
+// Server runs inline. The loops never block each other: send() only queues for the writer.
+class BlockingConnection extends ChatConnection {
+    private final BlockingServer server;
+    private final Socket socket;
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private boolean readPaused;  // guarded by this
+    private volatile int unflushed;  // taken by the writer, not yet flushed to the socket.
+
+    BlockingConnection(BlockingServer server, Socket socket) {
+        super(server.getBackpressure());
+        this.server = server;
+        this.socket = socket;
+    }
+
+    @Override
+    protected void messageQueued() {
+        // the writer is already waiting in outbound.take().
+    }
+
+    void readLoop() {
+        try {
+            MessageReader in = new MessageReader(socket.getInputStream());
+            ChatMessage msg;
+            while(awaitReadable() && (msg = in.read()) != null) {
+                if(in.isBinary())
+                    switchToBinary();
+                server.received(this, msg);
+            }
+        }
+        catch(IOException exc) {
+            // peer went away, same as reading "exit".
+        }
+        close();
+    }
+
+    private synchronized boolean awaitReadable() throws InterruptedIOException {
+        try {
+            while(readPaused && open.get())
+                wait();
+        }
+        catch(InterruptedException exc) {
+            throw new InterruptedIOException();
+        }
+        return open.get();
+    }
+
+    @Override
+    synchronized void pauseReading() {
+        readPaused = true;
+    }
+
+    @Override
+    synchronized void resumeReading() {
+        readPaused = false;
+        notifyAll();
+    }
+
+    void writeLoop() {
+        CountingOutputStream counted = null;
+        int messages = 0;
+        try {
+            counted = new CountingOutputStream(socket.getOutputStream());
+            OutputStream out = new BufferedOutputStream(counted, 16 * 1024);
+            boolean coalescing = server.isCoalescing();
+            Object next;
+            // null once closed, after everything queued before close() has been written.
+            while((next = outbound.take()) != null) {
+                unflushed++;
+                if(next instanceof FileRegion) {
+                    out.flush();  // whatever is buffered goes out first, in order.
+                    FileRegion region = (FileRegion) next;
+                    while(region.remaining() > 0) {
+                        region.transferTo(socket.getChannel());  // blocking channel, page cache to socket
+                        counted.calls++;
+                    }
+                }
+                else {
+                    out.write((byte[]) next);
+                }
+                messages++;
+                // a burst is flushed once, when the writer has caught up with the queue.
+                if(!coalescing || outbound.isEmpty()) {
+                    out.flush();
+                    server.wrote(counted.calls, messages);
+                    counted.calls = 0;
+                    messages = 0;
+                    unflushed = 0;
+                }
+            }
+        }
+        catch(IOException exc) {
+            close();
+        }
+        catch(InterruptedException exc) {
+            close();
+        }
+        if(counted != null)
+            server.wrote(counted.calls, messages);
+        try {
+            socket.close();  // also wakes the reader up if it is still in readLine().
+        }
+        catch(IOException exc) {
+            // already gone.
+        }
+    }
+
+    @Override
+    int inFlight() {
+        return unflushed;
+    }
+
+    // counts the writes that reach the socket, each one a system call.
+    private static class CountingOutputStream extends FilterOutputStream {
+        int calls;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            calls++;
+        }
+    }
+
+    @Override
+    public void close() {
+        if(!open.compareAndSet(true, false))
+            return;
+        outbound.close();
+        resumeReading();  // a paused reader wakes up and sees the connection is closed.
+        server.closed(this);
+    }
+
+    @Override
+    void abort() {
+        close();
+        try {
+            socket.close();  // the writer's pending write fails instead of waiting on the peer.
+        }
+        catch(IOException exc) {
+            // already gone.
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get();
+    }
+}
@@ -0,0 +1,123 @@
+package source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+// Thread-per-connection server in the same style as the original Server: every client
+// gets a reader doing readLine() and a writer doing println(). Whether those are
+// platform or virtual threads is decided by the ThreadFactory it is given.
+public class BlockingServer extends ChatServer {
+    private final int port;
+    private final ThreadFactory threads;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+    private volatile boolean accepting;
+
+    public BlockingServer(int port, ThreadFactory threads, ChatHandler handler) {
+        super(handler);
+        this.port = port;
+        this.threads = threads;
+    }
+
+    // one platform thread per reader and writer, exactly what Server.main used to create.
+    public static ThreadFactory platformThreads() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r);
+            }
+        };
+    }
+
+    // Thread.ofVirtual().factory(), looked up reflectively so the rest of the project
+    // still builds on JDKs older than 21. Returns null when virtual threads are missing.
+    public static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        }
+        catch(ReflectiveOperationException | RuntimeException exc) {
+            return null;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        // a blocking channel rather than a ServerSocket, so accepted sockets have a channel
+        // that FileChannel.transferTo can write history into.
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        accepting = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(accepting) {
+                    try {
+                        Socket socket = serverChannel.accept().socket();
+                        socket.setTcpNoDelay(true);
+                        final BlockingConnection conn = new BlockingConnection(BlockingServer.this, socket);
+                        opened(conn);
+                        threads.newThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                conn.readLoop();
+                            }
+                        }).start();
+                        threads.newThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                conn.writeLoop();
+                            }
+                        }).start();
+                    }
+                    catch(ClosedChannelException exc) {
+                        break;  // closed by stopAccepting().
+                    }
+                    catch(IOException exc) {
+                        System.out.println("Opps! Could Not Accept The Connection: " + exc);
+                    }
+                }
+            }
+        }, "blocking-acceptor");
+        acceptor.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    void stopAccepting() {
+        if(!accepting)
+            return;
+        accepting = false;
+        try {
+            serverChannel.close();
+            acceptor.join();
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Close The Server: " + exc);
+        }
+        catch(InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if(!running)
+            return;
+        running = false;
+        stopAccepting();
+        for(ChatConnection conn : getConnections())
+            conn.close();
+    }
+}
@@ -0,0 +1,157 @@
+package source;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One connected chat peer, independent of how its socket is being driven.
+public abstract class ChatConnection {
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final int id = nextId.getAndIncrement();
+    private volatile byte[] namePrefix;
+    protected final OutboundQueue outbound;
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining;
+    private final Object throttleLock = new Object();
+    private int throttledBy;  // congested queues this peer's messages go to, guarded by throttleLock
+
+    protected ChatConnection(Backpressure backpressure) {
+        this.outbound = new OutboundQueue(this, backpressure);
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public String getName() {
+        return "Client-" + this.id;
+    }
+
+    // "Client-3: " as UTF-8, what relayed messages from this peer are prefixed with.
+    public byte[] getNamePrefix() {
+        byte[] p = namePrefix;
+        if(p == null)
+            namePrefix = p = (getName() + ": ").getBytes(StandardCharsets.UTF_8);
+        return p;
+    }
+
+    // queues msg for delivery to this peer, never blocks the caller.
+    public void send(String msg) {
+        send(ChatMessage.of(msg));
+    }
+
+    // queues msg in whichever format this peer speaks. The encoded bytes are shared, not
+    // copied, so a broadcast encodes once for all recipients. false if it was dropped.
+    public boolean send(ChatMessage msg) {
+        return send(msg, null);
+    }
+
+    // the same for a message relayed from another peer, which Backpressure.Policy.PAUSE_READING
+    // stops reading from while this one's backlog is too long.
+    public boolean send(ChatMessage msg, ChatConnection from) {
+        if(!isOpen() || !outbound.offer(msg, from))
+            return false;
+        messageQueued();
+        return true;
+    }
+
+    // queues recent history straight from the log file, see ChatHistory.
+    public boolean send(FileRegion region) {
+        if(!isOpen() || !outbound.offer(region))
+            return false;
+        messageQueued();
+        return true;
+    }
+
+    // the peer sent the binary handshake: answer it and switch to frames.
+    protected void switchToBinary() {
+        if(outbound.switchToBinary())
+            messageQueued();
+    }
+
+    // rooms this peer is in, kept up to date by RoomRegistry.
+    public Set<Room> getRooms() {
+        return rooms;
+    }
+
+    void joined(Room room) {
+        rooms.add(room);
+    }
+
+    void left(Room room) {
+        rooms.remove(room);
+    }
+
+    // messages dropped because this peer fell too far behind.
+    public long getDropped() {
+        return outbound.getDropped();
+    }
+
+    // bytes queued for this peer and not yet written.
+    public long getPendingBytes() {
+        return outbound.getPendingBytes();
+    }
+
+    // messages not written yet: still queued, or taken by the writer but not sent in full.
+    public int getUndelivered() {
+        return outbound.size() + inFlight();
+    }
+
+    // everything queued so far has been handed to the kernel.
+    boolean isFlushed() {
+        return outbound.isEmpty() && inFlight() == 0;
+    }
+
+    // messages the writer has taken from outbound and not finished writing.
+    int inFlight() {
+        return 0;
+    }
+
+    // shutting down: stop reading for good, so what is queued can only shrink.
+    void drain() {
+        draining = true;
+        pauseReading();
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    // Backpressure.Policy.PAUSE_READING: a peer this one sends to is over its high watermark,
+    // nothing more is read from this one until every such peer is back to its low one.
+    void throttle() {
+        synchronized(throttleLock) {
+            if(throttledBy++ == 0)
+                pauseReading();
+        }
+    }
+
+    void unthrottle() {
+        synchronized(throttleLock) {
+            if(--throttledBy == 0 && !draining)
+                resumeReading();
+        }
+    }
+
+    // stop reading from the peer until resumeReading(). Called with another connection's
+    // outbound queue locked, so only flip state or hand work to the reader.
+    void pauseReading() {
+    }
+
+    void resumeReading() {
+    }
+
+    // tells the writer there is something new in outbound.
+    protected abstract void messageQueued();
+
+    public abstract void close();
+
+    // close without writing anything still queued, for a peer that missed the shutdown deadline.
+    void abort() {
+        close();
+    }
+
+    public abstract boolean isOpen();
+}
@@ -0,0 +1,11 @@
+package source;
+
+// Callbacks a server engine makes while serving its connections.
+// Implementations must not block: they run on the engine's I/O threads.
+public interface ChatHandler {
+    void onOpen(ChatConnection conn);
+
+    void onMessage(ChatConnection conn, ChatMessage msg);
+
+    void onClose(ChatConnection conn);
+}
@@ -0,0 +1,144 @@
+package source;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// The tail of chat_logs/log.txt, replayed to clients when they connect. Only line start
+// offsets are kept: each tail() catches the index up with what was appended since the
+// last call (never looking further back than maxBytes) and hands out a FileRegion, so the
+// lines themselves are never read into the heap or decoded. With -Dchat.textLog=false
+// there is no log.txt, the same lines are rebuilt from the last records in the segments.
+public class ChatHistory implements Closeable {
+    private final FileChannel channel;  // null when replaying from segments
+    private final SegmentedLog segments;
+    private final int lines;
+    private final int maxBytes;
+    private final long[] starts;  // ring of the most recent line starts
+    private int count;
+    private int next;
+    private long indexedTo;
+    private long lastLineEnd;
+
+    public ChatHistory(File log, int lines, int maxBytes) throws IOException {
+        this.channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+        this.segments = null;
+        this.lines = lines;
+        this.maxBytes = maxBytes;
+        this.starts = new long[lines + 1];  // + the start of the line still being written
+    }
+
+    // segments belong to the log writer, close() leaves them open.
+    public ChatHistory(SegmentedLog segments, int lines, int maxBytes) {
+        this.channel = null;
+        this.segments = segments;
+        this.lines = lines;
+        this.maxBytes = maxBytes;
+        this.starts = null;
+    }
+
+    // log.txt while it is written, otherwise the segments of the log this process owns.
+    public static ChatHistory open(File log, ChatLog writer, int lines, int maxBytes) throws IOException {
+        if(!"false".equals(System.getProperty("chat.textLog")))
+            return new ChatHistory(log, lines, maxBytes);
+        if(writer instanceof LogService)
+            return new ChatHistory(((LogService) writer).getSegments(), lines, maxBytes);
+        throw new IOException("chat.textLog is false and another process owns the log segments");
+    }
+
+    // queues the recent lines for conn, nothing if there are none yet.
+    public void replayTo(ChatConnection conn) throws IOException {
+        if(segments == null) {
+            FileRegion recent = tail();
+            if(recent != null)
+                conn.send(recent);
+            return;
+        }
+        List<LogRecord> records = segments.tail(lines);
+        byte[][] encoded = new byte[records.size()][];
+        int first = records.size();
+        int length = 0;
+        while(first > 0) {  // newest first, as many whole lines as fit in maxBytes
+            LogRecord record = records.get(first - 1);
+            byte[] line = (record + (record.getSender() == LogSink.SESSION ? "\n\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+            if(length + line.length > maxBytes)
+                break;
+            encoded[--first] = line;
+            length += line.length;
+        }
+        if(length == 0)
+            return;
+        byte[] payload = new byte[length];
+        int at = 0;
+        for(int i = first; i < encoded.length; i++) {
+            System.arraycopy(encoded[i], 0, payload, at, encoded[i].length);
+            at += encoded[i].length;
+        }
+        conn.send(new ChatMessage(Frame.HISTORY, 0, payload));
+    }
+
+    // the last complete lines (at most `lines` of them and maxBytes long), null if none.
+    public synchronized FileRegion tail() throws IOException {
+        catchUp();
+        if(count == 0)
+            return null;
+        int oldest = (next - count + starts.length) % starts.length;
+        for(int i = 0; i < count; i++) {
+            long start = starts[(oldest + i) % starts.length];
+            if(lastLineEnd - start <= maxBytes)
+                return start < lastLineEnd ? new FileRegion(channel, start, lastLineEnd) : null;
+        }
+        return null;
+    }
+
+    private void catchUp() throws IOException {
+        long size = channel.size();
+        if(size < indexedTo) {  // log was truncated or replaced, start over.
+            count = 0;
+            indexedTo = lastLineEnd = 0;
+        }
+        long from = Math.max(indexedTo, size - maxBytes);
+        if(from > indexedTo) {
+            // older lines can not be replayed anyway. We land inside a line, the first
+            // newline gives the first start we can trust.
+            count = 0;
+        }
+        else if(indexedTo == 0) {
+            recordStart(0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        long pos = from;
+        while(pos < size) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if(n <= 0)
+                break;
+            for(int i = 0; i < n; i++) {
+                if(buf.get(i) == '\n') {
+                    lastLineEnd = pos + i + 1;
+                    recordStart(lastLineEnd);
+                }
+            }
+            pos += n;
+        }
+        indexedTo = pos;
+    }
+
+    private void recordStart(long start) {
+        starts[next] = start;
+        next = (next + 1) % starts.length;
+        if(count < starts.length)
+            count++;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,11 @@
+package source;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Somewhere to append chat records: the log's single writer in this process, or a
+// connection to the process that owns it (see LogService).
+public interface ChatLog extends Closeable {
+    // returns the record's sequence number, its place in the log's one total order.
+    long append(int sender, String text) throws IOException;
+}
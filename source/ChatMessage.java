@@ -0,0 +1,114 @@
+package source;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One message as it is routed: the UTF-8 payload plus its type and sequence number.
+// The text and the two wire encodings are only built when somebody asks for them and
+// then shared, so a broadcast encodes each format once however many members it reaches.
+public final class ChatMessage {
+    public static final ChatMessage EXIT = new ChatMessage(Frame.EXIT, 0, new byte[0]);
+
+    private final byte type;
+    private final int seq;
+    private final byte[] payload;
+    private volatile String text;
+    private volatile byte[] line;
+    private volatile byte[] frame;
+
+    ChatMessage(byte type, int seq, byte[] payload) {
+        this.type = type;
+        this.seq = seq;
+        this.payload = payload;
+    }
+
+    public static ChatMessage of(String text) {
+        return new ChatMessage(Frame.CHAT, 0, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ChatMessage copyOf(byte type, int seq, ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new ChatMessage(type, seq, bytes);
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    // recent lines of the log replayed by the server, possibly several at once.
+    public boolean isHistory() {
+        return type == Frame.HISTORY;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public int length() {
+        return payload.length;
+    }
+
+    public String text() {
+        String t = text;
+        if(t == null)
+            text = t = new String(payload, StandardCharsets.UTF_8);
+        return t;
+    }
+
+    // same message with prefix (e.g. "Client-3: ") in front, without going through a String.
+    public ChatMessage prefixed(byte[] prefix) {
+        byte[] joined = Arrays.copyOf(prefix, prefix.length + payload.length);
+        System.arraycopy(payload, 0, joined, prefix.length, payload.length);
+        return new ChatMessage(type, seq, joined);
+    }
+
+    public ChatMessage prefixed(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length + payload.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        System.arraycopy(payload, 0, joined, first.length + second.length, payload.length);
+        return new ChatMessage(type, seq, joined);
+    }
+
+    public boolean startsWith(byte[] prefix) {
+        if(payload.length < prefix.length)
+            return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(payload[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    // text protocol encoding. A line cannot hold a newline, so those become spaces; history
+    // is already whole lines and goes as it is, like a FileRegion of log.txt.
+    byte[] line() {
+        byte[] l = line;
+        if(l == null) {
+            if(type == Frame.EXIT) {
+                l = "exit\n".getBytes(StandardCharsets.US_ASCII);
+            }
+            else if(type == Frame.HISTORY) {
+                l = payload;
+            }
+            else {
+                l = Arrays.copyOf(payload, payload.length + 1);
+                for(int i = 0; i < payload.length; i++) {
+                    if(l[i] == '\n' || l[i] == '\r')
+                        l[i] = ' ';
+                }
+                l[payload.length] = '\n';
+            }
+            line = l;
+        }
+        return l;
+    }
+
+    byte[] frame() {
+        byte[] f = frame;
+        if(f == null)
+            frame = f = Frame.encode(type, seq, payload);
+        return f;
+    }
+}
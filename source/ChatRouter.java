@@ -0,0 +1,96 @@
+package source;
+
+import java.io.IOException;
+import java.util.List;
+
+// Routing for the multi-client server: everybody starts in the lobby, may /join and /leave
+// other rooms, and a chat message goes to every room its sender is in.
+public class ChatRouter implements ChatHandler {
+    public static final String LOBBY = "lobby";
+    private static final int MAX_ROOM_NAME = 32;
+
+    private final RoomRegistry rooms;
+    private final Conversation everyone = new Conversation();
+    private ChatHistory history;
+
+    public ChatRouter(RoomRegistry rooms) {
+        this.rooms = rooms;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    // every connected client, whichever rooms they are in.
+    public Conversation getEveryone() {
+        return everyone;
+    }
+
+    // replayed to every client as it connects.
+    public void setHistory(ChatHistory history) {
+        this.history = history;
+    }
+
+    @Override
+    public void onOpen(ChatConnection conn) {
+        if(history != null) {
+            try {
+                history.replayTo(conn);
+            }
+            catch(IOException exc) {
+                System.out.println("Opps! Could Not Replay The History: " + exc);
+            }
+        }
+        everyone.join(conn);
+        rooms.join(LOBBY, conn);
+    }
+
+    @Override
+    public void onMessage(ChatConnection conn, ChatMessage msg) {
+        switch(msg.getType()) {
+            case Frame.JOIN:
+                String joining = roomName(msg);
+                if(joining == null) {
+                    conn.send("Opps! Room names are 1-" + MAX_ROOM_NAME + " characters without spaces.");
+                    break;
+                }
+                Room room = rooms.join(joining, conn);
+                conn.send("[Joined #" + joining + ", " + room.size() + " members]");
+                break;
+            case Frame.LEAVE:
+                String leaving = roomName(msg);
+                if(leaving == null) {
+                    conn.send("Opps! Room names are 1-" + MAX_ROOM_NAME + " characters without spaces.");
+                    break;
+                }
+                conn.send(rooms.leave(leaving, conn) ? "[Left #" + leaving + "]" : "Opps! You are not in #" + leaving);
+                break;
+            case Frame.ROOMS:
+                conn.send(describe(rooms.list()));
+                break;
+            case Frame.CHAT:
+                for(Room in : conn.getRooms())
+                    in.broadcast(conn, msg.prefixed(in.getPrefix(), conn.getNamePrefix()));
+        }
+    }
+
+    @Override
+    public void onClose(ChatConnection conn) {
+        everyone.leave(conn);
+        rooms.leaveAll(conn);
+    }
+
+    private static String roomName(ChatMessage msg) {
+        String name = msg.text().trim();
+        if(name.isEmpty() || name.length() > MAX_ROOM_NAME || name.indexOf(' ') >= 0)
+            return null;
+        return name;
+    }
+
+    private static String describe(List<Room> list) {
+        StringBuilder sb = new StringBuilder("[Rooms:");
+        for(Room room : list)
+            sb.append(" #").append(room.getName()).append(" (").append(room.size()).append(")");
+        return sb.append("]").toString();
+    }
+}
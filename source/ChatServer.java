@@ -0,0 +1,144 @@
+package source;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// What Server.main needs from an engine, whichever way it drives its sockets.
+public abstract class ChatServer {
+    private final ChatHandler handler;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final Set<ChatConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private Backpressure backpressure = Backpressure.fromSystemProperties();
+    // -Dchat.coalesce=false goes back to one write per message, for comparison.
+    private final boolean coalescing = !"false".equals(System.getProperty("chat.coalesce"));
+    // how long a connection may hold queued messages hoping for more, 0 means end of the loop turn.
+    private final long flushDelayMicros = Long.getLong("chat.flushDelayMicros", 0);
+
+    protected ChatServer(ChatHandler handler) {
+        this.handler = handler;
+    }
+
+    public abstract void start() throws IOException;
+
+    // closes every connection straight away, see shutdown() for the orderly way.
+    public abstract void stop();
+
+    // closes the listening socket, connected clients carry on.
+    abstract void stopAccepting();
+
+    // Orderly stop for restarts: take no new clients and no more input, give every queued
+    // message up to timeoutMillis to reach its peer, then close the sockets. Peers still
+    // behind at the deadline are cut off and what they missed is reported.
+    public ShutdownReport shutdown(long timeoutMillis) {
+        long start = System.nanoTime();
+        stopAccepting();
+        for(ChatConnection conn : connections)
+            conn.drain();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean drained;
+        while(!(drained = isFlushed()) && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(5);
+            }
+            catch(InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int count = 0;
+        int undelivered = 0;
+        long undeliveredBytes = 0;
+        for(ChatConnection conn : connections) {
+            count++;
+            if(!conn.isFlushed()) {
+                undelivered += conn.getUndelivered();
+                undeliveredBytes += conn.getPendingBytes();
+                conn.abort();
+            }
+        }
+        stop();
+        return new ShutdownReport(count, drained, undelivered, undeliveredBytes, backpressure.getDropped(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private boolean isFlushed() {
+        for(ChatConnection conn : connections)
+            if(conn.isOpen() && !conn.isFlushed())
+                return false;
+        return true;
+    }
+
+    // bound port, useful when started on port 0.
+    public abstract int getPort();
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    // applies to connections accepted from now on.
+    public void setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    // connections currently open.
+    public Set<ChatConnection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    // write/writev/sendfile calls made on client sockets.
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    // messages fully handed to the kernel.
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    void wrote(int calls, int messages) {
+        writeCalls.add(calls);
+        messagesOut.add(messages);
+    }
+
+    void opened(ChatConnection conn) {
+        openConnections.incrementAndGet();
+        connections.add(conn);
+        handler.onOpen(conn);
+    }
+
+    void received(ChatConnection conn, ChatMessage msg) {
+        messagesIn.incrementAndGet();
+        handler.onMessage(conn, msg);
+    }
+
+    void closed(ChatConnection conn) {
+        openConnections.decrementAndGet();
+        connections.remove(conn);
+        handler.onClose(conn);
+    }
+}
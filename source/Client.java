@@ -1,98 +1,128 @@
 package source;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Scanner;
-
-import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Client {
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         final Socket clientSocket; // socket used by client to send and recieve data from server.
-        final BufferedReader in;   // object to read data from socket.
-        final PrintWriter out;     // object to write data into socket.
+        final MessageReader in;    // object to read data from socket.
+        final MessageWriter out;   // object to write data into socket.
         final Scanner sc = new Scanner(System.in); // object to read data from user's keybord.
         final String pre = ">> ";
 
-        File client_content = new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/Client.html");
-        final String HTMl_START = "<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'><meta name='viewport'content='width=device-width, initial-scale=1.0'><meta http-equiv='X-UA-Compatible' content='ie=edge'><title>Client Test</title></head><body>",
-        HTML_END = "</body></html>";
+        File client_content = new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/Client");
         
-        final PrintWriter writer = new PrintWriter(client_content);
-        PrintWriter log_writer = new PrintWriter(new FileOutputStream(new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt"), true)); 
-
-        final ClientData cd = new ClientData();
+        TranscriptArchive archive = TranscriptArchive.fromSystemProperties(client_content, "Client Test");
+        TranscriptServer live = null; // the same messages on http://127.0.0.1:7080/ as they arrive
+        try {
+            live = TranscriptServer.fromSystemProperties("Client Test");
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Start The Live Transcript: " + exc);
+        }
+        final TranscriptRenderer writer = new TranscriptRenderer(archive, live, TranscriptRenderer.intervalFromSystemProperties()); // index.html and a page per 500 messages, written in the background
+        final ChatLog log_writer = LogService.open(new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt")); // the Server's log when it runs here, see LogService
+        final AtomicBoolean closing = new AtomicBoolean();
 
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        LocalDateTime now = LocalDateTime.now();
-        log_writer.append(dtf.format(now) + "\n\n");
+        Server.log(log_writer, LogSink.SESSION, new TimeFormat().format(System.currentTimeMillis()));
         
         System.out.println("\n" + pre + "Sending a request...\n" + pre);
         try {
             clientSocket = new Socket("127.0.0.1", 0007);
             System.out.println(pre + "[Connection Stablished Successfully]\n" + pre);
-            out = new PrintWriter(clientSocket.getOutputStream());
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            out = new MessageWriter(clientSocket.getOutputStream(), true); // binary frames, so a typed "exit" is just text to the server
+            in = new MessageReader(clientSocket.getInputStream());
+            // whoever sees "exit" first: transcript and log to disk, then close the socket,
+            // which also ends the other thread, so the program ends without System.exit.
+            final Runnable disconnect = new Runnable() {
+                @Override
+                public void run() {
+                    if(!closing.compareAndSet(false, true))
+                        return;
+                    closeTranscript(writer);
+                    Server.closeLog(log_writer);
+                    try {
+                        clientSocket.close();
+                    }
+                    catch(IOException exc) {
+                        // already gone.
+                    }
+                    System.out.println(pre);
+                    System.out.println(pre + "Successfully Disconnected!");
+                }
+            };
             Thread sender = new Thread(new Runnable() {
                 String msg = "";
                 @Override
                 public void run() {
-                    while(!msg.equalsIgnoreCase("exit")){
+                    while(!msg.equalsIgnoreCase("exit") && !closing.get()){
                     	System.out.print(pre);
                         msg = sc.nextLine();
-                        out.println(msg);
+                        try {
+                            if(msg.equalsIgnoreCase("exit"))
+                                out.writeExit();
+                            else
+                                out.write(msg);
+                        }
+                        catch(IOException exc) {
+                            System.out.println("Opps! Could Not Send The Message: " + exc);
+                        }
 
                         // feat: Text onto Web.
                         if(!msg.equalsIgnoreCase("exit")){
-                            log_writer.append("[Client]:\t" + msg + "\n");
-                            log_writer.flush();
-                            cd.setData(cd.getData() + new Div().appendText(msg));
-                            writer.println(HTMl_START + cd.getData() + HTML_END);
-                            writer.flush();
+                            Server.log(log_writer, LogSink.CLIENT, msg);
+                            writer.add(System.currentTimeMillis(), msg);
                         }
                         
-                        out.flush();
 						if(!msg.equalsIgnoreCase("exit"))
                             System.out.println(pre + "[Message Sent]");
                     }
-                    writer.close();
-                    log_writer.close();
-                    System.out.println(pre);
-                    System.out.println(pre + "Successfully Disconnected!");
-                    System.exit(1);
+                    disconnect.run();
                 }
             });
+            sender.setDaemon(true); // may be waiting on the keyboard when the server leaves
             sender.start();
             Thread receiver = new Thread(new Runnable() {
-                String msg = "";
+                ChatMessage msg;
                 @Override
                 public void run() {
                     try {
-                        msg = in.readLine();
-                        while(!msg.equalsIgnoreCase("exit")){
-                            System.out.println("Server : "+ msg);
+                        msg = in.read(); // null once the server sends exit
+                        while(msg != null){
+                            if(msg.isHistory())
+                                System.out.print("\n" + pre + "[Recent Messages]\n" + msg.text() + pre + "\n");
+                            else
+                                System.out.println("Server : "+ msg.text());
                             System.out.print(pre);
-                            msg = in.readLine();
+                            msg = in.read();
                         }
                         System.out.print("\n" + pre + "Server Disconnected!");
-                        System.exit(1);
                     }
                     catch(IOException exc) {
-						System.out.println("Opps! Not Found data for Socket: " + exc);
+                        if(!closing.get())
+						    System.out.println("Opps! Not Found data for Socket: " + exc);
 					}
+                    disconnect.run();
                 }
             });
             receiver.start();
 	    }
 	    catch(Exception exc) {
             System.out.println("Opps! Could Not Able To Stablish The Connection: " + exc);
+            closeTranscript(writer);
+            Server.closeLog(log_writer);
 		}	
     }
+
+    static void closeTranscript(TranscriptRenderer writer) {
+        try {
+            writer.close();
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Close The Transcript: " + exc);
+        }
+    }
 }
\ No newline at end of file
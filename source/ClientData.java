@@ -1,13 +1,107 @@
 package source;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// The rendered transcript, kept as a list of UTF-8 chunks instead of one String rebuilt
+// on every message: an append copies the new text into the last chunk, or starts a new
+// one, and nothing before it is touched again. Chunks only ever end between appends, so
+// each holds whole fragments and whole characters; a full one is trimmed to its text when
+// the next starts. Writing the transcript out goes chunk by chunk, without putting it back
+// together. With a cap, the oldest chunks are dropped once it is exceeded: the transcript
+// then holds the latest messages, at most maxBytes of them and at worst a chunk less.
+// Appends and reads may come from different threads.
 public class ClientData {
-    private String data =  "";
+    static final int CHUNK = 16 * 1024;
+
+    private final long maxBytes;
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private int used;  // bytes of the last chunk in use
+    private long size;
+    private long dropped;
+
+    public ClientData() {
+        this(0);
+    }
+
+    // maxBytes of 0 keeps everything.
+    public ClientData(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void append(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] last = chunks.peekLast();
+        if(last == null || last.length - used < bytes.length) {
+            if(last != null && used < last.length) {
+                chunks.removeLast();
+                chunks.addLast(Arrays.copyOf(last, used));
+            }
+            last = new byte[Math.max(CHUNK, bytes.length)];  // a big fragment gets a chunk of its own
+            chunks.addLast(last);
+            used = 0;
+        }
+        System.arraycopy(bytes, 0, last, used, bytes.length);
+        used += bytes.length;
+        size += bytes.length;
+        while(maxBytes > 0 && size > maxBytes && chunks.size() > 1) {
+            byte[] first = chunks.removeFirst();
+            size -= first.length;
+            dropped += first.length;
+        }
+    }
+
+    // the transcript as UTF-8, chunk by chunk. Appends carry on meanwhile, what is written
+    // is the transcript as it was when the call started.
+    public void writeTo(OutputStream out) throws IOException {
+        for(byte[] chunk : chunks())
+            out.write(chunk);
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for(byte[] chunk : chunks())
+            out.write(new String(chunk, StandardCharsets.UTF_8));
+    }
+
+    // the chunks as they are now: the full ones themselves, they never change again, and a
+    // copy of the text in the last one.
+    synchronized byte[][] chunks() {
+        byte[][] all = chunks.toArray(new byte[chunks.size()][]);
+        if(all.length > 0)
+            all[all.length - 1] = Arrays.copyOf(all[all.length - 1], used);
+        return all;
+    }
+
+    // bytes kept, and bytes dropped to keep under the cap.
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
 
-    public String getData() {
-        return this.data;
+    // the whole transcript as one String, only for small ones.
+    public synchronized String getData() {
+        StringBuilder data = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 8));
+        Iterator<byte[]> it = chunks.iterator();
+        while(it.hasNext()) {
+            byte[] chunk = it.next();
+            data.append(new String(chunk, 0, it.hasNext() ? chunk.length : used, StandardCharsets.UTF_8));
+        }
+        return data.toString();
     }
 
-    public void setData(String data) {
-        this.data = data;
+    public synchronized void setData(String data) {
+        chunks.clear();
+        used = 0;
+        size = 0;
+        dropped = 0;
+        append(data);
     }
 }
@@ -0,0 +1,102 @@
+package source;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.Div;
+
+// Time and heap of a transcript of rendered messages: ClientData's chunks, with and
+// without a cap, against the String that was rebuilt on every message. The String is
+// only built up to a smaller count, its cost grows with the square of it. Heap is what
+// is still reachable after a GC with the transcript kept.
+// usage: ClientDataBench [messages] [stringMessages]
+class ClientDataBench {
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int stringMessages = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        String[] fragments = new String[messages];
+        for(int i = 0; i < messages; i++)
+            fragments[i] = new Div().appendText("message " + i + ", about as long as people usually type them").toString();
+        System.out.println("transcript            messages   append ms  us/message   heap MB   write ms");
+        for(int round = 0; round < 2; round++) {  // the first round only warms the JIT up
+            chunks("chunks", new ClientData(), fragments, messages, round == 1);
+            chunks("chunks, 1M cap", new ClientData(1024 * 1024), fragments, messages, round == 1);
+            string(fragments, Math.min(stringMessages, messages), round == 1);
+        }
+    }
+
+    private static void chunks(String name, ClientData data, String[] fragments, int n, boolean report) throws IOException {
+        long before = heap();
+        long start = System.nanoTime();
+        for(int i = 0; i < n; i++)
+            data.append(fragments[i]);
+        long appended = System.nanoTime() - start;
+        long after = heap();
+        start = System.nanoTime();
+        Counter out = new Counter();
+        data.writeTo(out);
+        data.writeTo(new Discard());
+        long written = System.nanoTime() - start;
+        if(out.bytes != data.size())
+            throw new IllegalStateException("wrote " + out.bytes + " of " + data.size() + " bytes");
+        if(report)
+            report(name, n, appended, after - before, written);
+    }
+
+    private static void string(String[] fragments, int n, boolean report) {
+        long before = heap();
+        long start = System.nanoTime();
+        String all = "";
+        for(int i = 0; i < n; i++)
+            all = all + fragments[i];  // what Client did, setData(getData() + div)
+        long appended = System.nanoTime() - start;
+        long after = heap();
+        if(report)
+            report("String", all.length() > 0 ? n : 0, appended, after - before, 0);
+    }
+
+    private static void report(String name, int n, long appendNanos, long heapBytes, long writeNanos) {
+        System.out.printf("%-20s %10d %11.1f %11.2f %9.1f %10s%n", name, n, appendNanos / 1e6, appendNanos / 1e3 / n,
+                heapBytes / (1024.0 * 1024), writeNanos == 0 ? "-" : String.format("%.1f", writeNanos / 1e6));
+    }
+
+    private static long heap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class Counter extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private static final class Discard extends Writer {
+        @Override
+        public void write(char[] buf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A sealed Segment rewritten as independently deflated blocks, kept as <base>.logz:
+//
+//   header  int magic "CHAZ", short version, short 0, long baseSeq, long baseTime,
+//           long lastSeq, long lastTime, int records, int blocks, long index offset
+//   blocks  whole records in the Segment encoding, deflated, at most blockBytes raw each
+//   index   per block long firstSeq, long firstTime, long offset, int deflated, int raw
+//
+// Chat text deflates to a fraction of its size, and because every block starts a fresh
+// Deflater, one record is read by inflating its block alone: the index says which.
+final class CompressedSegment {
+    static final int MAGIC = 0x4348415A;  // "CHAZ"
+    static final short VERSION = Segment.VERSION;
+    static final int HEADER = 56;
+    static final int ENTRY = 32;
+    private static final int INFLATE_STEP = 4 * 1024;
+
+    final File file;
+    final long baseSeq;
+    final long baseTime;
+    final long lastSeq;
+    final long lastTime;
+    final int records;
+    private final FileChannel channel;  // positional reads only, shared by every reader
+    private final long[] firstSeqs;
+    private final long[] firstTimes;
+    private final long[] offsets;
+    private final int[] deflated;
+    private final int[] raw;
+    private final long[] rawOffsets;  // where each block's records were in the raw segment
+
+    private CompressedSegment(File file, FileChannel channel, ByteBuffer header, ByteBuffer index) {
+        this.file = file;
+        this.channel = channel;
+        this.baseSeq = header.getLong(8);
+        this.baseTime = header.getLong(16);
+        this.lastSeq = header.getLong(24);
+        this.lastTime = header.getLong(32);
+        this.records = header.getInt(40);
+        int blocks = header.getInt(44);
+        firstSeqs = new long[blocks];
+        firstTimes = new long[blocks];
+        offsets = new long[blocks];
+        deflated = new int[blocks];
+        raw = new int[blocks];
+        rawOffsets = new long[blocks];
+        long rawOffset = Segment.HEADER;
+        for(int b = 0; b < blocks; b++) {
+            firstSeqs[b] = index.getLong(b * ENTRY);
+            firstTimes[b] = index.getLong(b * ENTRY + 8);
+            offsets[b] = index.getLong(b * ENTRY + 16);
+            deflated[b] = index.getInt(b * ENTRY + 24);
+            raw[b] = index.getInt(b * ENTRY + 28);
+            rawOffsets[b] = rawOffset;
+            rawOffset += raw[b];
+        }
+    }
+
+    static File fileFor(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - 4) + ".logz");
+    }
+
+    static boolean isCompressedFile(String name) {
+        return name.length() == 25 && name.endsWith(".logz") && Segment.isSegmentFile(name.substring(0, 24));
+    }
+
+    // the raw segment a .logz file was written from.
+    static File rawFileFor(File compressed) {
+        String name = compressed.getName();
+        return new File(compressed.getParentFile(), name.substring(0, name.length() - 1));
+    }
+
+    static CompressedSegment open(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            Segment.readFully(ch, header, 0);
+            if(header.position() < HEADER || header.getInt(0) != MAGIC)
+                throw new IOException("not a compressed chat log segment: " + file);
+            if(header.getShort(4) != VERSION)
+                throw new IOException("unknown segment version " + header.getShort(4) + ": " + file);
+            ByteBuffer index = ByteBuffer.allocate(header.getInt(44) * ENTRY);
+            Segment.readFully(ch, index, header.getLong(48));
+            if(index.hasRemaining())
+                throw new IOException("block index cut short: " + file);
+            return new CompressedSegment(file, ch, header, index);
+        }
+        catch(IOException exc) {
+            ch.close();
+            throw exc;
+        }
+    }
+
+    // writes segment's records to out in blocks of at most blockBytes, through a temporary
+    // file so out only ever appears complete. Returns out's size.
+    static long write(Segment segment, File out, int blockBytes) throws IOException {
+        File tmp = new File(out.getPath() + ".tmp");
+        final Deflater deflater = new Deflater();
+        try {
+            long size;
+            try(FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final BlockWriter blocks = new BlockWriter(ch, deflater, blockBytes, segment);
+                final IOException[] failure = { null };
+                Segment.Visitor visitor = new Segment.Visitor() {
+                    @Override
+                    public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                        try {
+                            blocks.add(seq, time, sender, payload);
+                            return true;
+                        }
+                        catch(IOException exc) {
+                            failure[0] = exc;
+                            return false;
+                        }
+                    }
+                };
+                MappedSegment mapped = segment.mapped();
+                if(mapped != null) {
+                    mapped.scan(visitor);
+                }
+                else {
+                    try(FileChannel data = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                        segment.scan(data, Segment.HEADER, segment.end, visitor);
+                    }
+                }
+                if(failure[0] != null)
+                    throw failure[0];
+                size = blocks.finish();
+                ch.force(false);
+            }
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        }
+        finally {
+            deflater.end();
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    // records are gathered raw up to blockBytes, then deflated and written as one block.
+    private static final class BlockWriter {
+        private final FileChannel channel;
+        private final Deflater deflater;
+        private final int blockBytes;
+        private final Segment segment;
+        private final ByteBuffer block;
+        private byte[] out = new byte[64 * 1024];
+        private ByteBuffer index = ByteBuffer.allocate(ENTRY * 64);
+        private long position = HEADER;
+        private int blocks;
+        private int records;
+        private long firstSeq;
+        private long firstTime;
+
+        BlockWriter(FileChannel channel, Deflater deflater, int blockBytes, Segment segment) {
+            this.channel = channel;
+            this.deflater = deflater;
+            this.blockBytes = blockBytes;
+            this.segment = segment;
+            this.block = ByteBuffer.allocate(Math.max(blockBytes, Segment.MAX_RECORD));  // a big record gets a block of its own
+        }
+
+        void add(long seq, long time, int sender, ByteBuffer payload) throws IOException {
+            if(block.position() > 0 && block.position() + Segment.RECORD_HEADER + payload.remaining() > blockBytes)
+                writeBlock();
+            if(block.position() == 0) {
+                firstSeq = seq;
+                firstTime = time;
+            }
+            Segment.encode(block, segment.baseSeq, segment.baseTime, seq, time, sender, payload);
+            records++;
+        }
+
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block.array(), 0, block.position());
+            deflater.finish();
+            int length = 0;
+            while(!deflater.finished()) {
+                if(length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(out, 0, length);
+            while(buf.hasRemaining())
+                channel.write(buf, position + buf.position());
+            if(index.remaining() < ENTRY) {
+                ByteBuffer bigger = ByteBuffer.allocate(index.capacity() * 2);
+                index.flip();
+                index = bigger.put(index);
+            }
+            index.putLong(firstSeq).putLong(firstTime).putLong(position).putInt(length).putInt(block.position());
+            position += length;
+            blocks++;
+            block.clear();
+        }
+
+        long finish() throws IOException {
+            if(block.position() > 0)
+                writeBlock();
+            long indexOffset = position;
+            index.flip();
+            while(index.hasRemaining())
+                position += channel.write(index, position);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(segment.baseSeq).putLong(segment.baseTime)
+                    .putLong(segment.lastSeq).putLong(segment.lastTime).putInt(records).putInt(blocks).putLong(indexOffset);
+            header.flip();
+            while(header.hasRemaining())
+                channel.write(header, header.position());
+            return position;
+        }
+    }
+
+    // records whose seq or time (field) is at least from, in order, until visitor says
+    // stop: from the block that can hold the first of them on, one block inflated at a time.
+    void scan(int field, long from, Segment.Visitor visitor) throws IOException {
+        long[] keys = field == SegmentIndex.TIME ? firstTimes : firstSeqs;
+        long key = field == SegmentIndex.TIME ? from - 1 : from;  // equal times may straddle blocks
+        int block = 0;
+        int lo = 0;
+        int hi = keys.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] <= key) {
+                block = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        scanFrom(block, visitor);
+    }
+
+    // every record, in order.
+    void scan(Segment.Visitor visitor) throws IOException {
+        scanFrom(0, visitor);
+    }
+
+    private void scanFrom(int first, final Segment.Visitor visitor) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            byte[] in = null;
+            byte[] out = null;
+            final boolean[] stopped = { false };
+            for(int b = first; b < offsets.length && !stopped[0]; b++) {
+                if(in == null || in.length < deflated[b])
+                    in = new byte[deflated[b]];
+                if(out == null || out.length < raw[b])
+                    out = new byte[raw[b]];
+                ByteBuffer buf = ByteBuffer.wrap(in, 0, deflated[b]);
+                Segment.readFully(channel, buf, offsets[b]);
+                inflater.reset();
+                inflater.setInput(in, 0, deflated[b]);
+                final long rawOffset = rawOffsets[b];
+                Segment.Visitor offsets = new Segment.Visitor() {
+                    @Override
+                    public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                        stopped[0] = !visitor.record(rawOffset + offset, seq, time, sender, payload);
+                        return !stopped[0];
+                    }
+                };
+                // a few K at a time, records handed out as soon as they are whole: a lookup
+                // stops inflating at the record it wanted, on average half way in.
+                ByteBuffer records = ByteBuffer.wrap(out);
+                int n = 0;
+                int scanned = 0;
+                while(n < raw[b] && !inflater.finished() && !stopped[0]) {
+                    int step = inflater.inflate(out, n, Math.min(INFLATE_STEP, raw[b] - n));
+                    if(step == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    n += step;
+                    scanned = Segment.scan(records, scanned, n, baseSeq, baseTime, offsets);
+                }
+                if(n != raw[b] && !stopped[0])
+                    throw new IOException("block " + b + " of " + file + " is damaged");
+            }
+        }
+        catch(DataFormatException exc) {
+            throw new IOException("could not inflate " + file + ": " + exc.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    int getBlocks() {
+        return offsets.length;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,44 @@
+package source;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Members of one conversation and the fan-out of messages to them. Membership is a
+// copy-on-write array: joins and leaves copy it, every broadcast just walks a snapshot.
+// A message is encoded once and every member's writer gets a reference to the same
+// bytes through its own bounded queue, so a member that stops reading only loses its own.
+public class Conversation {
+    private final CopyOnWriteArrayList<ChatConnection> members = new CopyOnWriteArrayList<>();
+
+    // false if conn already was a member.
+    public boolean join(ChatConnection conn) {
+        return members.addIfAbsent(conn);
+    }
+
+    public boolean leave(ChatConnection conn) {
+        return members.remove(conn);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public List<ChatConnection> getMembers() {
+        return members;
+    }
+
+    public int broadcast(ChatConnection from, String msg) {
+        return broadcast(from, ChatMessage.of(msg));
+    }
+
+    // sends msg to every member except from (null when it comes from the server itself),
+    // returns how many members it was queued for.
+    public int broadcast(ChatConnection from, ChatMessage msg) {
+        int delivered = 0;
+        for(ChatConnection conn : members) {
+            if(conn != from && conn.send(msg, from))
+                delivered++;
+        }
+        return delivered;
+    }
+}
@@ -0,0 +1,92 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Throughput and acknowledgement latency of the log under each durability mode: threads
+// append records to an AsyncLogWriter over a SegmentedLog in a scratch directory, each
+// timing how long until its record is acknowledged, after awaitDurable() for group
+// commit. "force each" is every sender writing its own record straight to the SegmentedLog
+// and forcing it, for comparison: one fsync per message instead of one per batch. It runs
+// a tenth of the records, as many fsyncs take long; rates and latencies still compare.
+// Run it on the disk the log will live on.
+// usage: DurabilityBench [threads] [recordsPerThread] [dir]
+class DurabilityBench {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        File dir = args.length > 2 ? new File(args[2]) : new File(System.getProperty("java.io.tmpdir"));
+        System.out.println(threads + " threads x " + perThread + " records, log in " + dir);
+        System.out.println("mode             records  records/sec   p50 us   p99 us   max us     fsyncs  records/fsync");
+        for(int round = 0; round < 2; round++) {  // the first round only warms the JIT up
+            run("none", AsyncLogWriter.Durability.NONE, threads, perThread, dir, round == 1);
+            run("interval", AsyncLogWriter.Durability.INTERVAL, threads, perThread, dir, round == 1);
+            run("group-commit", AsyncLogWriter.Durability.GROUP_COMMIT, threads, perThread, dir, round == 1);
+            run("force each", null, threads, Math.max(1, perThread / 10), dir, round == 1);
+        }
+    }
+
+    private static void run(String name, AsyncLogWriter.Durability durability, int threads, final int perThread,
+            File parent, boolean report) throws IOException, InterruptedException {
+        File dir = new File(parent, "durabilitybench-" + System.nanoTime());
+        final SegmentedLog log = new SegmentedLog(dir, 64L * 1024 * 1024, Long.MAX_VALUE, 0, 0, null);
+        final boolean forceEach = durability == null;
+        final AsyncLogWriter writer = forceEach ? null : new AsyncLogWriter(log, 4096, 100, 0, durability, 1000);
+        final long[] forced = new long[1];  // records written and forced so far, force each only
+        final long[][] latencies = new long[threads][perThread];
+        final String text = "a chat message of about the usual length, give or take";
+        Thread[] senders = new Thread[threads];
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++) {
+            final int id = t + 1;
+            senders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < perThread; i++) {
+                            long begin = System.nanoTime();
+                            if(forceEach) {
+                                // the log has one writer, senders take turns: write, flush, fsync.
+                                synchronized(log) {
+                                    log.write(forced[0], System.currentTimeMillis(), id, text);
+                                    log.flush();
+                                    log.sync();
+                                    forced[0]++;
+                                }
+                            }
+                            else {
+                                writer.awaitDurable(writer.append(id, text));
+                            }
+                            latencies[id - 1][i] = System.nanoTime() - begin;
+                        }
+                    }
+                    catch(IOException exc) {
+                        System.out.println("Opps! " + exc);
+                    }
+                }
+            });
+            senders[t].start();
+        }
+        for(Thread sender : senders)
+            sender.join();
+        if(forceEach)
+            log.close();
+        else
+            writer.close();
+        long elapsed = System.nanoTime() - start;
+        if(report) {
+            long[] all = new long[threads * perThread];
+            for(int t = 0; t < threads; t++)
+                System.arraycopy(latencies[t], 0, all, t * perThread, perThread);
+            Arrays.sort(all);
+            long syncs = forceEach ? forced[0] : writer.getSyncs();
+            System.out.printf("%-12s %11d %12.0f %8.1f %8.1f %8.1f %10d %14s%n", name, all.length, all.length * 1e9 / elapsed,
+                    all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3, all[all.length - 1] / 1e3, syncs,
+                    syncs == 0 ? "-" : String.format("%.1f", all.length / (double) syncs));
+        }
+        for(File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,173 @@
+package source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A single selector thread owning a share of the server's connections. Other threads
+// only talk to it through execute(), so each connection's socket is touched by one thread.
+class EventLoop extends Thread {
+    private final NioServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // connections with queued output, flushed together once per turn (or once per delay window).
+    private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushArmed = new AtomicBoolean();
+    private final long flushDelayNanos;
+    private long flushDeadline;  // 0 when no window is open, only touched by the loop thread.
+
+    EventLoop(NioServer server, String name) throws IOException {
+        super(name);
+        this.server = server;
+        this.selector = Selector.open();
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(server.getFlushDelayMicros());
+    }
+
+    void register(final SocketChannel ch) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                    NioConnection conn = new NioConnection(EventLoop.this, ch, key);
+                    key.attach(conn);
+                    server.opened(conn);
+                }
+                catch(IOException exc) {
+                    closeQuietly(ch);
+                }
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    // every message queued for conn until the next flush goes out in one gathering write.
+    void scheduleFlush(NioConnection conn) {
+        flushes.add(conn);
+        // one wakeup per window instead of one per message.
+        if(Thread.currentThread() != this && flushArmed.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    NioServer getServer() {
+        return server;
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        // one read buffer per loop, connections copy out whatever they keep.
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        while(server.isRunning()) {
+            try {
+                select();
+            }
+            catch(IOException exc) {
+                System.out.println("Opps! Selector failed: " + exc);
+                break;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection conn = (NioConnection) key.attachment();
+                if(key.isValid() && key.isReadable())
+                    conn.read(readBuffer);
+                if(key.isValid() && key.isWritable())
+                    conn.flush();
+            }
+            // after the keys, so replies queued by handlers above go out in this same turn.
+            runTasks();
+            if(flushDue())
+                runFlushes();
+        }
+        runTasks();
+        runFlushes();
+        for(SelectionKey key : selector.keys()) {
+            NioConnection conn = (NioConnection) key.attachment();
+            if(conn != null) {
+                conn.flush();  // best effort, a stopped server still tries to deliver what is queued.
+                conn.closeNow();
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch(IOException exc) {
+            // nothing left to release.
+        }
+    }
+
+    private void select() throws IOException {
+        if(flushes.isEmpty()) {
+            // about to block: disarm, so the next connection queued wakes the selector. One
+            // queued just before saw the flag still set and sent no wakeup, so look again.
+            flushArmed.set(false);
+            if(flushes.isEmpty()) {
+                selector.select();
+                return;
+            }
+        }
+        if(flushDelayNanos == 0) {
+            selector.selectNow();
+        }
+        else {
+            if(flushDeadline == 0)
+                flushDeadline = System.nanoTime() + flushDelayNanos;
+            long wait = flushDeadline - System.nanoTime();
+            if(wait <= 0)
+                selector.selectNow();
+            else
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));  // select() counts in millis
+        }
+    }
+
+    private boolean flushDue() {
+        if(flushes.isEmpty())
+            return false;
+        return flushDelayNanos == 0 || (flushDeadline != 0 && System.nanoTime() - flushDeadline >= 0);
+    }
+
+    private void runFlushes() {
+        // disarm first, a connection queued after this point wakes the selector again.
+        flushArmed.set(false);
+        flushDeadline = 0;
+        NioConnection conn;
+        while((conn = flushes.poll()) != null)
+            conn.flush();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        }
+        catch(IOException exc) {
+            // already gone.
+        }
+    }
+}
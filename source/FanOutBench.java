@@ -0,0 +1,123 @@
+package source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fan-out throughput of one conversation on NioServer for 1 to 1000 recipients. Every run
+// also has one member that never reads, to show it neither stalls the sender nor the others.
+// The stalled member is handled by the Backpressure policy, -Dchat.backpressure picks it.
+// writes/msg is socket write calls per delivered message, -Dchat.coalesce=false for one each.
+// usage: FanOutBench [totalDeliveries]
+class FanOutBench {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final long totalDeliveries = args.length > 0 ? Long.parseLong(args[0]) : 500_000;
+        System.out.println("backpressure: " + Backpressure.fromSystemProperties().getPolicy());
+        System.out.println("coalesce: " + !"false".equals(System.getProperty("chat.coalesce"))
+                + ", flush delay: " + Long.getLong("chat.flushDelayMicros", 0) + "us");
+        System.out.println("recipients  messages  deliveries/sec  messages/sec  lost  stalled-dropped  fired  writes/msg");
+        for(int recipients : new int[] { 1, 10, 100, 1000 })
+            run(recipients, (int) Math.max(100, totalDeliveries / recipients));
+    }
+
+    private static void run(int recipients, int messages) throws IOException, InterruptedException {
+        final Conversation conversation = new Conversation();
+        NioServer server = new NioServer(0, Runtime.getRuntime().availableProcessors(), new ChatHandler() {
+            @Override
+            public void onOpen(ChatConnection conn) {
+                conversation.join(conn);
+            }
+
+            @Override
+            public void onMessage(ChatConnection conn, ChatMessage msg) {
+                conversation.broadcast(conn, msg);
+            }
+
+            @Override
+            public void onClose(ChatConnection conn) {
+                conversation.leave(conn);
+            }
+        });
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        final Selector selector = Selector.open();
+        for(int i = 0; i < recipients; i++) {
+            SocketChannel ch = SocketChannel.open(address);
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+        }
+        SocketChannel stalled = SocketChannel.open(address);  // connected, never read.
+        SocketChannel sender = SocketChannel.open(address);
+        while(server.getOpenConnections() < recipients + 2)
+            Thread.sleep(1);
+
+        final AtomicLong received = new AtomicLong();
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while(selector.isOpen() && selector.select() >= 0) {
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while(keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            buf.clear();
+                            ((SocketChannel) key.channel()).read(buf);
+                            buf.flip();
+                            long lines = 0;
+                            while(buf.hasRemaining())
+                                if(buf.get() == '\n')
+                                    lines++;
+                            received.addAndGet(lines);
+                        }
+                    }
+                }
+                catch(IOException | RuntimeException exc) {
+                    // selector closed, run is over.
+                }
+            }
+        });
+        drainer.start();
+
+        long expected = (long) messages * recipients;
+        ByteBuffer line = ByteBuffer.wrap("[Client]:\tWanna catchup for Birtday party?\n".getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        for(int i = 0; i < messages; i++) {
+            line.rewind();
+            while(line.hasRemaining())
+                sender.write(line);
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        long last = -1;
+        // done when everything arrived, or nothing more is arriving because lines were dropped.
+        while(received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            if(server.getMessagesIn() == messages && received.get() == last)
+                break;
+            last = received.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long stalledDropped = 0;
+        for(ChatConnection conn : conversation.getMembers())
+            stalledDropped = Math.max(stalledDropped, conn.getDropped());
+        System.out.printf("%10d  %8d  %14d  %12d  %4d  %15d  %5d  %10.3f%n", recipients, messages,
+                (long) (received.get() / seconds), (long) (messages / seconds), expected - received.get(),
+                stalledDropped, server.getBackpressure().getFired(),
+                (double) server.getWriteCalls() / Math.max(1, server.getMessagesOut()));
+
+        selector.close();
+        drainer.join();
+        stalled.close();
+        sender.close();
+        server.stop();
+    }
+}
@@ -0,0 +1,43 @@
+package source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A byte range of a file queued for a connection like any message, but written with
+// FileChannel.transferTo so its bytes go from the page cache to the socket without
+// passing through the heap. Each connection gets its own region, the channel is shared.
+final class FileRegion {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+    private ByteBuffer header;  // frame header written ahead of the file bytes, if any
+
+    FileRegion(FileChannel channel, long position, long end) {
+        this.channel = channel;
+        this.position = position;
+        this.end = end;
+    }
+
+    void setHeader(byte[] header) {
+        this.header = ByteBuffer.wrap(header);
+    }
+
+    long remaining() {
+        return (header == null ? 0 : header.remaining()) + end - position;
+    }
+
+    // writes as much as target takes right now.
+    long transferTo(WritableByteChannel target) throws IOException {
+        long n = 0;
+        if(header != null && header.hasRemaining()) {
+            n = target.write(header);
+            if(header.hasRemaining())
+                return n;
+        }
+        long sent = channel.transferTo(position, end - position, target);
+        position += sent;
+        return n + sent;
+    }
+}
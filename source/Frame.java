@@ -0,0 +1,98 @@
+package source;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary wire format. A connection switches to it by sending HANDSHAKE (0xFF, which never
+// appears in UTF-8 text, then the version) at a message boundary; from then on every
+// message is a frame:
+//
+//   int payloadLength | byte type | int seq | payload (UTF-8 text for CHAT)
+//
+// Peers that never send the handshake keep using newline terminated text lines, where
+// "exit" and the /join, /leave and /rooms commands stand for the control frames.
+final class Frame {
+    static final byte MAGIC = (byte) 0xFF;
+    static final byte VERSION = 1;
+    static final byte[] HANDSHAKE = { MAGIC, VERSION };
+    static final int HEADER = 9;
+    static final int MAX_PAYLOAD = 64 * 1024;
+
+    // only reported by FrameDecoder when the peer's handshake arrives, never sent as a frame.
+    static final byte HELLO = 0;
+    static final byte CHAT = 1;
+    static final byte EXIT = 2;
+    static final byte JOIN = 3;   // payload: room name
+    static final byte LEAVE = 4;  // payload: room name
+    static final byte ROOMS = 5;  // asks for the room list, no payload
+    static final byte HISTORY = 6;  // payload: recent log.txt lines, server to client only
+
+    // what a text line starting with these means, the rest of the line is the payload.
+    private static final byte[][] COMMANDS = { ascii("/join "), ascii("/leave "), ascii("/rooms") };
+    private static final byte[] COMMAND_TYPES = { JOIN, LEAVE, ROOMS };
+
+    private Frame() {
+    }
+
+    // types handed on to a ChatHandler, the rest are handled by the connection itself.
+    static boolean isMessage(byte type) {
+        return type == CHAT || type == JOIN || type == LEAVE || type == ROOMS;
+    }
+
+    // type of a line of typed text: EXIT for "exit", a room command, otherwise CHAT.
+    static byte lineType(ByteBuffer line) {
+        if(isExit(line))
+            return EXIT;
+        for(int i = 0; i < COMMANDS.length; i++) {
+            if(startsWith(line, COMMANDS[i]))
+                return COMMAND_TYPES[i];
+        }
+        return CHAT;
+    }
+
+    // number of leading bytes of a line of type lineType() that are not payload.
+    static int commandLength(byte type) {
+        for(int i = 0; i < COMMAND_TYPES.length; i++) {
+            if(COMMAND_TYPES[i] == type)
+                return COMMANDS[i].length;
+        }
+        return 0;
+    }
+
+    // compared without decoding the line.
+    private static boolean isExit(ByteBuffer line) {
+        if(line.remaining() != 4)
+            return false;
+        int p = line.position();
+        return (line.get(p) | 0x20) == 'e' && (line.get(p + 1) | 0x20) == 'x'
+            && (line.get(p + 2) | 0x20) == 'i' && (line.get(p + 3) | 0x20) == 't';
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if(line.remaining() < prefix.length)
+            return false;
+        int p = line.position();
+        for(int i = 0; i < prefix.length; i++) {
+            if(line.get(p + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] encode(byte type, int seq, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER + payload.length);
+        frame.putInt(payload.length).put(type).putInt(seq).put(payload);
+        return frame.array();
+    }
+
+    // just the header, for a payload that is sent separately.
+    static byte[] header(byte type, int seq, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER);
+        frame.putInt(payloadLength).put(type).putInt(seq);
+        return frame.array();
+    }
+}
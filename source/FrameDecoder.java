@@ -0,0 +1,118 @@
+package source;
+
+import java.nio.ByteBuffer;
+
+// Incremental decoder for both wire formats. Complete messages are handed to the listener
+// as a slice of the buffer they arrived in, nothing is copied or turned into a String;
+// only a message split across reads is carried over in a small per-connection buffer.
+// Text lines come out as CHAT frames, except "exit" and the room commands which come out
+// as the matching control frames (see Frame.lineType).
+class FrameDecoder {
+    interface Listener {
+        // payload is only valid during the call. Return false to stop decoding, anything
+        // left over is kept and decoded by the next call.
+        boolean onFrame(byte type, int seq, ByteBuffer payload);
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private ByteBuffer pending = ByteBuffer.allocate(256);
+    private boolean binary;
+    private int lineSeq;
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // false if the peer sent something that is neither a line nor a valid frame.
+    boolean decode(ByteBuffer in, Listener listener) {
+        ByteBuffer buf = in;
+        if(pending.position() > 0) {
+            if(!append(in))
+                return false;
+            pending.flip();
+            buf = pending;
+        }
+        int stop = decodeFrom(buf, listener);
+        if(stop < 0)
+            return false;
+        if(buf == pending) {
+            pending.compact();
+        }
+        else if(buf.hasRemaining()) {
+            pending.clear();
+            if(!append(buf))
+                return false;
+        }
+        return true;
+    }
+
+    boolean decode(Listener listener) {
+        return decode(EMPTY, listener);
+    }
+
+    private boolean append(ByteBuffer in) {
+        if(pending.remaining() < in.remaining()) {
+            int needed = pending.position() + in.remaining();
+            if(needed > Frame.HEADER + Frame.MAX_PAYLOAD)
+                return false;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, pending.capacity() * 2));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.put(in);
+        return true;
+    }
+
+    // returns -1 on a protocol error, otherwise leaves buf at the first undecoded byte.
+    private int decodeFrom(ByteBuffer buf, Listener listener) {
+        while(buf.hasRemaining()) {
+            int p = buf.position();
+            if(binary) {
+                if(buf.remaining() < Frame.HEADER)
+                    break;
+                int length = buf.getInt(p);
+                if(length < 0 || length > Frame.MAX_PAYLOAD)
+                    return -1;
+                if(buf.remaining() < Frame.HEADER + length)
+                    break;
+                buf.position(p + Frame.HEADER + length);
+                if(!listener.onFrame(buf.get(p + 4), buf.getInt(p + 5), buf.slice(p + Frame.HEADER, length)))
+                    break;
+            }
+            else if(buf.get(p) == Frame.MAGIC) {
+                if(buf.remaining() < 2)
+                    break;
+                if(buf.get(p + 1) != Frame.VERSION)
+                    return -1;
+                binary = true;
+                buf.position(p + 2);
+                if(!listener.onFrame(Frame.HELLO, 0, EMPTY))
+                    break;
+            }
+            else {
+                int newline = -1;
+                for(int i = p; i < buf.limit(); i++) {
+                    if(buf.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if(newline < 0) {
+                    if(buf.remaining() > Frame.MAX_PAYLOAD)
+                        return -1;  // no newline in sight, not a chat client.
+                    break;
+                }
+                int end = newline > p && buf.get(newline - 1) == '\r' ? newline - 1 : newline;
+                ByteBuffer line = buf.slice(p, end - p);
+                byte type = Frame.lineType(line);
+                int skip = Frame.commandLength(type);
+                buf.position(newline + 1);
+                if(!listener.onFrame(type, ++lineSeq, line.slice(skip, line.remaining() - skip)))
+                    break;
+            }
+        }
+        return buf.position();
+    }
+}
@@ -0,0 +1,306 @@
+package source;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator. Opens N simulated clients against a running multi-client Server
+// (or one it starts itself), puts them in rooms of roomSize, sends chat messages at a fixed
+// total rate with a configurable size distribution, and measures the end-to-end latency of
+// every delivery. Latency is taken from the time a message was scheduled to go out, so a
+// server that falls behind is not hidden by the generator sending late. Ends by printing a
+// JSON report, also written to report=<file> if given.
+//
+// usage: LoadGenerator key=value ...
+//   host=127.0.0.1 port=7   target server, or server=nio|platform|virtual to start one here
+//   clients=100 roomSize=10 rate=2000 (messages/sec in total) duration=10 warmup=2 (seconds)
+//   size=fixed:64 | uniform:16-512 | exp:128 (payload bytes)   binary=true   report=out.json
+class LoadGenerator {
+    private static final byte[] MARK = "lg:".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> opts = new HashMap<>();
+        for(String arg : args) {
+            int eq = arg.indexOf('=');
+            if(eq > 0)
+                opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        String host = opts.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(opts.getOrDefault("port", "7"));
+        int clients = Integer.parseInt(opts.getOrDefault("clients", "100"));
+        int roomSize = Integer.parseInt(opts.getOrDefault("roomSize", "10"));
+        int rate = Integer.parseInt(opts.getOrDefault("rate", "2000"));
+        int duration = Integer.parseInt(opts.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "2"));
+        String size = opts.getOrDefault("size", "fixed:64");
+        boolean binary = Boolean.parseBoolean(opts.getOrDefault("binary", "true"));
+        if(duration <= 0) {
+            System.out.println("Opps! duration is the seconds to measure for, at least 1.");  // the report divides by it
+            return;
+        }
+
+        ChatServer server = null;
+        if(opts.containsKey("server")) {
+            server = Server.createServer(opts.get("server"), 0, new ChatRouter(new RoomRegistry()));
+            if(server == null)
+                return;
+            server.start();
+            port = server.getPort();
+        }
+
+        final Selector selector = Selector.open();
+        SocketChannel[] channels = new SocketChannel[clients];
+        for(int i = 0; i < clients; i++) {
+            channels[i] = SocketChannel.open(new InetSocketAddress(host, port));
+            channels[i].configureBlocking(false);
+            channels[i].register(selector, SelectionKey.OP_READ, new FrameDecoder());
+            if(binary)
+                writeFully(channels[i], ByteBuffer.wrap(Frame.HANDSHAKE));
+            writeFully(channels[i], encode(binary, Frame.JOIN, 0, ascii("lg-" + (i / roomSize))));
+            writeFully(channels[i], encode(binary, Frame.LEAVE, 0, ascii(ChatRouter.LOBBY)));
+        }
+
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmup * 1_000_000_000L;
+        final long end = measureFrom + duration * 1_000_000_000L;
+        final Histogram latency = new Histogram();
+        final AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(selector, start, measureFrom, latency, received);
+            }
+        }, "lg-reader");
+        reader.start();
+
+        // sender: one message every 1/rate seconds, round robin over the clients.
+        Random random = new Random(7);
+        long interval = 1_000_000_000L / rate;
+        long sent = 0;
+        long measuredSent = 0;
+        long expected = 0;  // deliveries of the measured messages, one per other member of the sender's room
+        for(long i = 0; ; i++) {
+            long due = start + i * interval;
+            if(due >= end)
+                break;
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+            byte[] payload = payload(due - start, payloadSize(size, random));
+            int from = (int) (i % clients);
+            writeFully(channels[from], encode(binary, Frame.CHAT, (int) i, payload));
+            sent++;
+            if(due >= measureFrom) {
+                measuredSent++;
+                // the last room is short when clients is not a multiple of roomSize.
+                expected += Math.min(roomSize, clients - from / roomSize * roomSize) - 1;
+            }
+        }
+        Thread.sleep(1000);  // let the last deliveries arrive.
+        selector.close();
+        reader.join();
+        for(SocketChannel ch : channels)
+            ch.close();
+
+        String report = report(opts, clients, roomSize, rate, duration, size, binary, sent, measuredSent,
+            expected, received.get(), latency, server);
+        System.out.println(report);
+        if(opts.containsKey("report")) {
+            try(Writer out = new FileWriter(opts.get("report"))) {
+                out.write(report);
+            }
+        }
+        if(server != null)
+            server.stop();
+    }
+
+    private static void read(Selector selector, final long start, final long measureFrom, final Histogram latency,
+            final AtomicLong received) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+            @Override
+            public boolean onFrame(byte type, int seq, ByteBuffer payload) {
+                if(type != Frame.CHAT)
+                    return true;
+                long offset = sentAt(payload);
+                long sentAt = start + offset;
+                if(offset >= 0 && sentAt - measureFrom >= 0) {
+                    latency.record((System.nanoTime() - sentAt) / 1000);
+                    received.incrementAndGet();
+                }
+                return true;
+            }
+        };
+        try {
+            while(selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    buf.clear();
+                    if(((SocketChannel) key.channel()).read(buf) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    buf.flip();
+                    ((FrameDecoder) key.attachment()).decode(buf, listener);
+                }
+            }
+        }
+        catch(IOException | RuntimeException exc) {
+            // selector closed, run is over.
+        }
+    }
+
+    // "lg:<nanos from start to scheduled>:" followed by padding; relayed messages carry a
+    // room/name prefix. An offset, as nanoTime itself may be negative.
+    private static byte[] payload(long offset, int size) {
+        byte[] head = ("lg:" + offset + ":").getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = Arrays.copyOf(head, Math.max(size, head.length));
+        Arrays.fill(payload, head.length, payload.length, (byte) 'x');
+        return payload;
+    }
+
+    // the offset payload() wrote, -1 if there is none.
+    private static long sentAt(ByteBuffer payload) {
+        int p = payload.position();
+        int limit = payload.limit();
+        outer:
+        for(; p + MARK.length <= limit; p++) {
+            for(int i = 0; i < MARK.length; i++) {
+                if(payload.get(p + i) != MARK[i])
+                    continue outer;
+            }
+            long value = 0;
+            for(int i = p + MARK.length; i < limit && payload.get(i) != ':'; i++)
+                value = value * 10 + (payload.get(i) - '0');
+            return value;
+        }
+        return -1;
+    }
+
+    private static int payloadSize(String spec, Random random) {
+        String[] parts = spec.split(":");
+        if(parts[0].equals("uniform")) {
+            String[] range = parts[1].split("-");
+            int lo = Integer.parseInt(range[0]);
+            return lo + random.nextInt(Integer.parseInt(range[1]) - lo + 1);
+        }
+        if(parts[0].equals("exp"))
+            return (int) Math.min(Frame.MAX_PAYLOAD - 64, -Math.log(1 - random.nextDouble()) * Integer.parseInt(parts[1]));
+        return Integer.parseInt(parts[1]);
+    }
+
+    private static ByteBuffer encode(boolean binary, byte type, int seq, byte[] payload) {
+        if(binary)
+            return ByteBuffer.wrap(Frame.encode(type, seq, payload));
+        String command = type == Frame.JOIN ? "/join " : type == Frame.LEAVE ? "/leave " : "";
+        byte[] prefix = ascii(command);
+        ByteBuffer line = ByteBuffer.allocate(prefix.length + payload.length + 1);
+        return line.put(prefix).put(payload).put((byte) '\n').flip();
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            if(ch.write(buf) == 0)
+                Thread.yield();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String report(Map<String, String> opts, int clients, int roomSize, int rate, int duration,
+            String size, boolean binary, long sent, long measuredSent, long expected, long received, Histogram latency,
+            ChatServer server) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"target\":\"").append(opts.containsKey("server") ? "in-process " + opts.get("server") : opts.getOrDefault("host", "127.0.0.1") + ":" + opts.getOrDefault("port", "7")).append("\",");
+        json.append("\"clients\":").append(clients).append(',');
+        json.append("\"roomSize\":").append(roomSize).append(',');
+        json.append("\"rate\":").append(rate).append(',');
+        json.append("\"durationSec\":").append(duration).append(',');
+        json.append("\"size\":\"").append(size).append("\",");
+        json.append("\"binary\":").append(binary).append(',');
+        json.append("\"sent\":").append(sent).append(',');
+        json.append("\"measuredSent\":").append(measuredSent).append(',');
+        json.append("\"deliveriesExpected\":").append(expected).append(',');
+        json.append("\"deliveries\":").append(received).append(',');
+        json.append("\"messagesPerSec\":").append(measuredSent / duration).append(',');
+        json.append("\"deliveriesPerSec\":").append(received / duration).append(',');
+        json.append("\"latencyMicros\":{");
+        json.append("\"p50\":").append(latency.percentile(50)).append(',');
+        json.append("\"p90\":").append(latency.percentile(90)).append(',');
+        json.append("\"p99\":").append(latency.percentile(99)).append(',');
+        json.append("\"p999\":").append(latency.percentile(99.9)).append(',');
+        json.append("\"max\":").append(latency.max()).append('}');
+        if(server != null) {
+            Backpressure bp = server.getBackpressure();
+            json.append(",\"backpressure\":{\"policy\":\"").append(bp.getPolicy()).append("\",\"fired\":").append(bp.getFired())
+                .append(",\"dropped\":").append(bp.getDropped()).append(",\"disconnected\":").append(bp.getDisconnected())
+                .append(",\"paused\":").append(bp.getPaused()).append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    // Log-linear latency histogram (32 buckets per power of two, ~3% error), only written by
+    // the reader thread and read once it has finished.
+    static class Histogram {
+        private static final int SUB = 32;
+        private final long[] counts = new long[64 * SUB];
+        private long total;
+        private long max;
+
+        void record(long micros) {
+            long v = Math.max(0, micros);
+            counts[index(v)]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        private static int index(long v) {
+            if(v < SUB)
+                return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v) - 5;  // v >> exp lies in [SUB, 2 * SUB)
+            return exp * SUB + (int) (v >> exp);
+        }
+
+        private static long lowest(int index) {
+            if(index < 2 * SUB)
+                return index;
+            int exp = index / SUB - 1;
+            return (long) (index - exp * SUB) << exp;
+        }
+
+        long percentile(double p) {
+            if(total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * p / 100);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= rank)
+                    return Math.min(max, lowest(i + 1) - 1);
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+    }
+}
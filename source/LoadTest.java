@@ -0,0 +1,127 @@
+package source;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+// Starts a server engine in this JVM, connects N clients to it and pushes M lines through
+// each one. Reports connections held, memory per connection, messages/sec received and
+// the delivery latency of echoed pings while all the other connections sit idle.
+// usage: LoadTest [nio|platform|virtual] [connections] [messagesPerConnection]
+class LoadTest {
+    private static final byte[] PING = "ping ".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final String mode = args.length > 0 ? args[0] : "nio";
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int perConnection = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final int pings = 2000;
+
+        ChatServer server = Server.createServer(mode, 0, new ChatHandler() {
+            @Override
+            public void onOpen(ChatConnection conn) {
+            }
+
+            @Override
+            public void onMessage(ChatConnection conn, ChatMessage msg) {
+                if(msg.startsWith(PING))
+                    conn.send(msg);
+            }
+
+            @Override
+            public void onClose(ChatConnection conn) {
+            }
+        });
+        if(server == null)
+            return;
+        server.start();
+
+        long rssBefore = residentBytes();
+        long heapBefore = usedHeap();
+        SocketChannel[] clients = new SocketChannel[connections];
+        long connectStart = System.nanoTime();
+        for(int i = 0; i < connections; i++)
+            clients[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+        while(server.getOpenConnections() < connections)
+            Thread.sleep(1);
+        long connectNanos = System.nanoTime() - connectStart;
+        Thread.sleep(200);  // let the per-connection threads reach their blocking calls.
+        long rssPerConn = (residentBytes() - rssBefore) / connections;
+        long heapPerConn = (usedHeap() - heapBefore) / connections;
+
+        ByteBuffer line = ByteBuffer.wrap("Hey, How you doin? this is a load test line\n".getBytes(StandardCharsets.UTF_8));
+        long expected = (long) connections * perConnection;
+        long sendStart = System.nanoTime();
+        for(int m = 0; m < perConnection; m++) {
+            for(SocketChannel ch : clients) {
+                line.rewind();
+                while(line.hasRemaining())
+                    ch.write(line);
+            }
+        }
+        while(server.getMessagesIn() < expected)
+            Thread.sleep(1);
+        long sendNanos = System.nanoTime() - sendStart;
+
+        long[] latencies = new long[pings];
+        Random random = new Random(7);
+        ByteBuffer reply = ByteBuffer.allocate(256);
+        for(int i = 0; i < pings; i++) {
+            SocketChannel ch = clients[random.nextInt(connections)];
+            ByteBuffer ping = ByteBuffer.wrap(("ping " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            long start = System.nanoTime();
+            while(ping.hasRemaining())
+                ch.write(ping);
+            reply.clear();
+            while(reply.position() == 0 || reply.get(reply.position() - 1) != '\n')
+                ch.read(reply);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("mode             : " + mode);
+        System.out.println("connections      : " + server.getOpenConnections());
+        System.out.println("connect time ms  : " + connectNanos / 1_000_000);
+        System.out.println("rss/conn bytes   : " + (rssPerConn > 0 ? rssPerConn : "n/a"));
+        System.out.println("heap/conn bytes  : " + heapPerConn);
+        System.out.println("messages         : " + server.getMessagesIn());
+        System.out.println("elapsed ms       : " + sendNanos / 1_000_000);
+        System.out.println("messages/sec     : " + (long) (expected / (sendNanos / 1e9)));
+        System.out.println("ping p50 us      : " + latencies[pings / 2] / 1000);
+        System.out.println("ping p99 us      : " + latencies[pings * 99 / 100] / 1000);
+
+        for(SocketChannel ch : clients)
+            ch.close();
+        server.stop();
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // VmRSS from /proc, covers native thread stacks that the heap numbers miss. 0 elsewhere.
+    private static long residentBytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for(String row : Files.readAllLines(status)) {
+                if(row.startsWith("VmRSS:"))
+                    return Long.parseLong(row.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        catch(IOException | RuntimeException exc) {
+            // not on Linux.
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,109 @@
+package source;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Messages/sec through NioServer when every message received is logged the way Server
+// logs console lines: not at all, append+flush on the handling thread as Server used to,
+// or through AsyncLogWriter. "drained" includes waiting for the log to reach the file.
+// usage: LogBench [clients] [messagesPerClient]
+class LogBench {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perClient = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        System.out.println("logging  messages  messages/sec  drained msgs/sec  ring stalls");
+        for(int round = 0; round < 2; round++)  // the first round only warms the JIT up
+            for(String mode : new String[] { "off", "flush", "async" })
+                run(mode, clients, perClient, round == 1);
+    }
+
+    private static void run(final String mode, int clients, final int perClient, boolean report) throws IOException, InterruptedException {
+        File file = File.createTempFile("logbench", ".txt");
+        file.deleteOnExit();
+        final PrintWriter printWriter = mode.equals("flush") ? new PrintWriter(new FileOutputStream(file, true)) : null;
+        final AsyncLogWriter asyncWriter = mode.equals("async")
+                ? new AsyncLogWriter(new TextLogSink(file), 4096, AsyncLogWriter.flushIntervalFromSystemProperties()) : null;
+
+        NioServer server = new NioServer(0, Runtime.getRuntime().availableProcessors(), new ChatHandler() {
+            @Override
+            public void onOpen(ChatConnection conn) {
+            }
+
+            @Override
+            public void onMessage(ChatConnection conn, ChatMessage msg) {
+                if(printWriter != null) {
+                    synchronized(printWriter) {
+                        printWriter.append("[" + conn.getName() + "]:\t" + msg.text() + "\n");
+                        printWriter.flush();
+                    }
+                }
+                else if(asyncWriter != null) {
+                    asyncWriter.append(conn.getId(), msg.text());
+                }
+            }
+
+            @Override
+            public void onClose(ChatConnection conn) {
+            }
+        });
+        server.start();
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        Thread[] senders = new Thread[clients];
+        long start = System.nanoTime();
+        for(int c = 0; c < clients; c++) {
+            senders[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try(SocketChannel ch = SocketChannel.open(address)) {
+                        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                        byte[] line = "[Client]:\tWanna catchup for Birtday party?\n".getBytes(StandardCharsets.UTF_8);
+                        for(int i = 0; i < perClient; i++) {
+                            if(buf.remaining() < line.length) {
+                                buf.flip();
+                                while(buf.hasRemaining())
+                                    ch.write(buf);
+                                buf.clear();
+                            }
+                            buf.put(line);
+                        }
+                        buf.flip();
+                        while(buf.hasRemaining())
+                            ch.write(buf);
+                        while(ch.read(ByteBuffer.allocate(1)) >= 0)
+                            ;  // until the server closes us
+                    }
+                    catch(IOException exc) {
+                        System.out.println("Opps! Could Not Send: " + exc);
+                    }
+                }
+            });
+            senders[c].start();
+        }
+        long total = (long) clients * perClient;
+        while(server.getMessagesIn() < total)
+            Thread.sleep(1);
+        long handled = System.nanoTime() - start;
+        long stalls = 0;
+        if(printWriter != null)
+            printWriter.close();
+        if(asyncWriter != null) {
+            asyncWriter.close();
+            stalls = asyncWriter.getStalls();
+        }
+        long drained = System.nanoTime() - start;
+        server.stop();
+        for(Thread t : senders)
+            t.join();
+        if(report)
+            System.out.printf("%7s  %8d  %12d  %16d  %11d%n", mode, total, (long) (total / (handled / 1e9)),
+                    (long) (total / (drained / 1e9)), stalls);
+        file.delete();
+    }
+}
@@ -0,0 +1,106 @@
+package source;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Converts a chat_logs/log.txt written before the log was kept in segments: every
+// "yyyy/MM/dd HH:mm:ss" session header becomes a SESSION record and every "[Sender]:\t"
+// line a message from that sender, timed at its session's start since the text log
+// kept no other times. A line that is neither is the rest of a message that had a
+// newline in it. The directory must not hold any records yet: imported history is older
+// than anything logged since, and seqs and times only go forward.
+// usage: LogImporter <log.txt> <segments dir>
+class LogImporter {
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("usage: LogImporter <log.txt> <segments dir>");
+            return;
+        }
+        SegmentedLog log = SegmentedLog.fromSystemProperties(new File(args[1]));
+        try {
+            if(log.getNextSeq() > 0) {
+                System.out.println("Opps! " + args[1] + " already holds records, import into an empty directory");
+                return;
+            }
+            importText(new File(args[0]), log);
+        }
+        finally {
+            log.close();
+        }
+        System.out.println("imported " + log.getNextSeq() + " records");
+    }
+
+    static void importText(File text, SegmentedLog log) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat(TimeFormat.PATTERN);
+        format.setLenient(false);
+        long seq = log.getNextSeq();
+        long time = text.lastModified();  // for lines before the first session header
+        int sender = 0;
+        StringBuilder message = null;
+        int blanks = 0;  // blank lines inside or after the message
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(text), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                int name = line.startsWith("[") ? line.indexOf("]:\t") : -1;
+                long session = line.length() == TimeFormat.PATTERN.length() ? parse(format, line) : -1;
+                if(name > 0 || session >= 0) {
+                    if(message != null)
+                        log.write(seq++, time, sender, message.toString());
+                    message = null;
+                }
+                if(session >= 0) {
+                    time = session;
+                    log.write(seq++, time, LogSink.SESSION, line);
+                }
+                else if(name > 0) {
+                    sender = senderId(line.substring(1, name));
+                    message = new StringBuilder(line.substring(name + 3));
+                    blanks = 0;
+                }
+                else if(message != null && line.isEmpty()) {
+                    blanks++;  // only part of the message if more of it follows
+                }
+                else if(message != null) {
+                    for(int i = 0; i <= blanks; i++)
+                        message.append('\n');
+                    message.append(line);
+                    blanks = 0;
+                }
+                // else the blank line after a session header
+            }
+        }
+        if(message != null)
+            log.write(seq, time, sender, message.toString());
+        log.flush();
+    }
+
+    private static long parse(SimpleDateFormat format, String line) {
+        ParsePosition at = new ParsePosition(0);
+        Date date = format.parse(line, at);
+        return date == null || at.getIndex() != line.length() ? -1 : date.getTime();
+    }
+
+    // the inverse of LogSink.senderName().
+    static int senderId(String name) {
+        if(name.equals("Server"))
+            return LogSink.SERVER;
+        if(name.equals("Client"))
+            return LogSink.CLIENT;
+        if(name.startsWith("Client-")) {
+            try {
+                return Integer.parseInt(name.substring(7));
+            }
+            catch(NumberFormatException exc) {
+                // not one of ours, falls through
+            }
+        }
+        return LogSink.SERVER;
+    }
+}
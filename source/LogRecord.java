@@ -0,0 +1,39 @@
+package source;
+
+// One logged chat message as read back from the log.
+public class LogRecord {
+    private final long seq;
+    private final long time;
+    private final int sender;
+    private final String text;
+
+    public LogRecord(long seq, long time, int sender, String text) {
+        this.seq = seq;
+        this.time = time;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    // System.currentTimeMillis() when it was logged.
+    public long getTime() {
+        return time;
+    }
+
+    public int getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // the record as a log.txt line, without the newline.
+    @Override
+    public String toString() {
+        return sender == LogSink.SESSION ? text : "[" + LogSink.senderName(sender) + "]:\t" + text;
+    }
+}
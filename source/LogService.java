@@ -0,0 +1,184 @@
+package source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The one writer of a chat log on this machine. Whoever opens the log first owns it: it
+// runs the AsyncLogWriter and listens on a loopback port, and every participant opened
+// after it, a Server or Client in another process, sends its records there instead of
+// appending to the file itself. One writer gives one total order, one sequence number per
+// record and one batched stream of writes instead of processes appending over each other.
+//
+// Wire format, both ways big-endian: int length, int sender, length bytes of UTF-8 text
+// from the participant, answered by the record's long sequence number; with
+// -Dchat.durability=group-commit only once the record is on disk.
+public class LogService implements ChatLog {
+    private final AsyncLogWriter writer;
+    private final SegmentedLog segments;
+    private final SearchIndex search;
+    private final ServerSocket listener;
+    private final Set<Socket> participants = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    private LogService(AsyncLogWriter writer, SegmentedLog segments, SearchIndex search, ServerSocket listener) {
+        this.writer = writer;
+        this.segments = segments;
+        this.search = search;
+        this.listener = listener;
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "log-service");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // -Dchat.logPort=7008
+    public static ChatLog open(File log) throws IOException {
+        return open(log, Integer.getInteger("chat.logPort", 7008));
+    }
+
+    // the owning LogService if nobody on this machine owns the log yet, otherwise a
+    // connection to the process that does. Records are kept in the segments directory
+    // next to log, and log itself stays a readable transcript unless -Dchat.textLog=false.
+    // The segments directory also holds search.idx, the SearchIndex over them.
+    public static ChatLog open(File log, int port) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        try {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        catch(BindException exc) {
+            listener.close();
+            return new RemoteLog(log, port);
+        }
+        SegmentedLog segments;
+        SearchIndex search;
+        LogSink sink;
+        try {
+            segments = SegmentedLog.fromSystemProperties(new File(log.getAbsoluteFile().getParentFile(), "segments"));
+            search = SearchIndex.open(new File(segments.getDirectory(), "search.idx"), segments);
+            sink = "false".equals(System.getProperty("chat.textLog")) ? new TeeLogSink(segments, search)
+                    : new TeeLogSink(segments, search, new TextLogSink(log));
+        }
+        catch(IOException exc) {
+            listener.close();
+            throw exc;
+        }
+        // numbering carries on from the last record in the segments.
+        AsyncLogWriter writer = new AsyncLogWriter(sink, 4096, AsyncLogWriter.flushIntervalFromSystemProperties(),
+                segments.getNextSeq(), AsyncLogWriter.durabilityFromSystemProperties(),
+                AsyncLogWriter.syncIntervalFromSystemProperties());
+        return new LogService(writer, segments, search, listener);
+    }
+
+    // with -Dchat.durability=group-commit, returns once the record is on disk.
+    @Override
+    public long append(int sender, String text) throws IOException {
+        long seq = writer.append(sender, text);
+        writer.awaitDurable(seq);
+        return seq;
+    }
+
+    // for reading back what has been written, see SegmentedLog.tail() and read().
+    public SegmentedLog getSegments() {
+        return segments;
+    }
+
+    // seqs of the messages matching a query, to be read back from getSegments().
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    private void acceptLoop() {
+        while(!listener.isClosed()) {
+            try {
+                final Socket socket = listener.accept();
+                participants.add(socket);
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "log-participant");
+                reader.setDaemon(true);
+                reader.start();
+            }
+            catch(IOException exc) {
+                if(!listener.isClosed())
+                    System.out.println("Opps! Could Not Accept A Log Participant: " + exc);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long[] answers = new long[64];
+            int pending = 0;
+            while(true) {
+                int length = in.readInt();
+                int sender = in.readInt();
+                if(length < 0 || length > Frame.MAX_PAYLOAD)
+                    break;  // not one of ours
+                byte[] text = new byte[length];
+                in.readFully(text);
+                if(pending == answers.length)
+                    answers = Arrays.copyOf(answers, pending * 2);
+                answers[pending++] = writer.append(sender, new String(text, StandardCharsets.UTF_8));
+                if(in.available() == 0) {
+                    // the answers to a pipelined burst go out together, once the last of
+                    // its records (and so all of them) is durable.
+                    writer.awaitDurable(answers[pending - 1]);
+                    for(int i = 0; i < pending; i++)
+                        out.writeLong(answers[i]);
+                    out.flush();
+                    pending = 0;
+                }
+            }
+        }
+        catch(EOFException exc) {
+            // participant closed its log.
+        }
+        catch(IOException exc) {
+            if(!listener.isClosed())
+                System.out.println("Opps! Lost A Log Participant: " + exc);
+        }
+        participants.remove(socket);
+        closeQuietly(socket);
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch(IOException exc) {
+            // already gone.
+        }
+    }
+
+    // stops taking records from other processes, then drains and closes the file.
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        for(Socket socket : participants)
+            closeQuietly(socket);
+        writer.close();
+    }
+}
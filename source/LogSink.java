@@ -0,0 +1,32 @@
+package source;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Where AsyncLogWriter's single writer thread puts records. Only ever called from that
+// thread, so implementations need no locking of their own.
+public interface LogSink extends Closeable {
+    // senders: 0 is the server console, n > 0 is Client-n of a multi-client server.
+    int SERVER = 0;
+    int CLIENT = -1;   // the one-to-one Client
+    int SESSION = -2;  // a session header, text is its "yyyy/MM/dd HH:mm:ss" stamp
+
+    // seq is the record's place in the log, time is System.currentTimeMillis() at append.
+    void write(long seq, long time, int sender, String text) throws IOException;
+
+    // end of a batch: hand what is buffered to the operating system.
+    void flush() throws IOException;
+
+    // after a flush: make what was flushed survive a crash of the machine, not just of
+    // the process.
+    void sync() throws IOException;
+
+    // what the log file calls a sender, "Server", "Client" or "Client-3".
+    static String senderName(int sender) {
+        if(sender == SERVER)
+            return "Server";
+        if(sender == CLIENT)
+            return "Client";
+        return "Client-" + sender;
+    }
+}
@@ -0,0 +1,160 @@
+package source;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Looks into a segmented chat log, or an archive of one, from the command line. The log is
+// opened read-only, so it is safe to run while a Server or Client is writing to it.
+// usage: LogTool <segments dir> segments
+//        LogTool <segments dir> tail [n]
+//        LogTool <segments dir> read <fromSeq> [n]
+//        LogTool <segments dir> before <seq> [n]
+//        LogTool <segments dir> since "yyyy/MM/dd HH:mm:ss" [n]
+//        LogTool <segments dir> between "yyyy/MM/dd HH:mm:ss" "yyyy/MM/dd HH:mm:ss"  (streamed)
+//        LogTool <segments dir> export [fromSeq]   (all of it as log.txt lines)
+//        LogTool <segments dir> search "<query>" [n]  (words, "a phrase", prefix*)
+class LogTool {
+    private static final byte[] NEWLINE = { '\n' };
+    private static final byte[] SESSION_END = { '\n', '\n' };
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("usage: LogTool <segments dir> segments|tail [n]|read <fromSeq> [n]|before <seq> [n]|since <time> [n]|between <from> <to>|search <query> [n]");
+            return;
+        }
+        SegmentedLog log = SegmentedLog.readOnly(new File(args[0]));
+        try {
+            String command = args[1];
+            if(command.equals("segments")) {
+                for(File file : log.getSegments())
+                    System.out.println(file.getName() + "\t" + file.length() + " bytes");
+                System.out.println("next seq " + log.getNextSeq());
+            }
+            else if(command.equals("tail")) {
+                print(log.tail(args.length > 2 ? Integer.parseInt(args[2]) : 50));
+            }
+            else if(command.equals("read") && args.length > 2) {
+                print(log.read(Long.parseLong(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 50));
+            }
+            else if(command.equals("before") && args.length > 2) {
+                print(log.before(Long.parseLong(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 50));
+            }
+            else if(command.equals("since") && args.length > 2) {
+                print(log.since(parse(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 50));
+            }
+            else if(command.equals("between") && args.length > 3) {
+                between(log, parse(args[2]), parse(args[3]));
+            }
+            else if(command.equals("search") && args.length > 2) {
+                search(log, args[2], args.length > 3 ? Integer.parseInt(args[3]) : 50);
+            }
+            else if(command.equals("export")) {
+                export(log, args.length > 2 ? Long.parseLong(args[2]) : 0);
+            }
+            else {
+                System.out.println("Opps! Unknown command: " + command);
+            }
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    // streams records from the mapped segments to stdout, nothing is collected on the heap.
+    private static void export(SegmentedLog log, long fromSeq) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+        final IOException[] failure = { null };
+        log.forEach(fromSeq, new Segment.Visitor() {
+            @Override
+            public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                try {
+                    if(sender != LogSink.SESSION)
+                        out.write(("[" + LogSink.senderName(sender) + "]:\t").getBytes(StandardCharsets.UTF_8));
+                    while(payload.hasRemaining())
+                        out.write(payload.get());
+                    out.write(sender == LogSink.SESSION ? SESSION_END : NEWLINE);
+                    return true;
+                }
+                catch(IOException exc) {
+                    failure[0] = exc;
+                    return false;
+                }
+            }
+        });
+        out.flush();
+        if(failure[0] != null)
+            throw failure[0];
+    }
+
+    // seq, time and line of every record in the range, streamed like export.
+    private static void between(SegmentedLog log, long from, long to) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+        final TimeFormat format = new TimeFormat();
+        final IOException[] failure = { null };
+        log.forEachBetween(from, to, new Segment.Visitor() {
+            @Override
+            public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                try {
+                    String prefix = seq + "\t" + format.format(time) + "\t";
+                    if(sender != LogSink.SESSION)
+                        prefix += "[" + LogSink.senderName(sender) + "]:\t";
+                    out.write(prefix.getBytes(StandardCharsets.UTF_8));
+                    while(payload.hasRemaining())
+                        out.write(payload.get());
+                    out.write(NEWLINE);
+                    return true;
+                }
+                catch(IOException exc) {
+                    failure[0] = exc;
+                    return false;
+                }
+            }
+        });
+        out.flush();
+        if(failure[0] != null)
+            throw failure[0];
+    }
+
+    // uses the server's search.idx as of its last close and indexes the rest in memory,
+    // the file itself is left to the server.
+    private static void search(SegmentedLog log, String query, int n) throws IOException {
+        long start = System.nanoTime();
+        SearchIndex index = SearchIndex.open(new File(log.getDirectory(), "search.idx"), log);
+        long opened = System.nanoTime();
+        List<Long> hits = index.search(query, n);
+        long searched = System.nanoTime();
+        List<LogRecord> records = new ArrayList<>();
+        for(int i = hits.size() - 1; i >= 0; i--) {
+            List<LogRecord> one = log.read(hits.get(i), 1);
+            if(!one.isEmpty() && one.get(0).getSeq() == hits.get(i))
+                records.add(one.get(0));  // unless retention removed it since
+        }
+        print(records);
+        System.out.printf("%d hits, %d terms, opened in %d ms, searched in %.2f ms%n", hits.size(),
+                index.getTermCount(), (opened - start) / 1000000, (searched - opened) / 1e6);
+    }
+
+    private static void print(List<LogRecord> records) {
+        TimeFormat format = new TimeFormat();
+        for(LogRecord record : records)
+            System.out.println(record.getSeq() + "\t" + format.format(record.getTime()) + "\t" + record);
+    }
+
+    private static long parse(String time) throws IOException {
+        Date date = new SimpleDateFormat(TimeFormat.PATTERN).parse(time, new ParsePosition(0));
+        if(date == null)
+            throw new IOException("not a " + TimeFormat.PATTERN + " time: " + time);
+        return date.getTime();
+    }
+}
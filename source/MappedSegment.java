@@ -0,0 +1,76 @@
+package source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+// A sealed Segment and its index mapped read-only, one mapping shared by every reader.
+// Records are parsed straight out of the page cache and payloads handed out as views of
+// the mapping, never copied to the heap. Readers only use absolute gets and their own
+// duplicates, never the shared buffers' positions, so any number can read at once.
+final class MappedSegment {
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;  // null if the segment has no index
+    private final int end;
+    private final long baseSeq;
+    private final long baseTime;
+
+    private MappedSegment(MappedByteBuffer data, MappedByteBuffer index, int end, Segment segment) {
+        this.data = data;
+        this.index = index;
+        this.end = end;
+        this.baseSeq = segment.baseSeq;
+        this.baseTime = segment.baseTime;
+    }
+
+    // null if the segment is too big for one mapping, callers then read it through a channel.
+    static MappedSegment map(Segment segment) throws IOException {
+        if(segment.end > Integer.MAX_VALUE)
+            return null;
+        MappedByteBuffer data;
+        try(FileChannel ch = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            data = ch.map(FileChannel.MapMode.READ_ONLY, 0, segment.end);
+        }
+        MappedByteBuffer index = null;
+        try(FileChannel ch = FileChannel.open(SegmentIndex.fileFor(segment.file).toPath(), StandardOpenOption.READ)) {
+            index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size() / SegmentIndex.ENTRY * SegmentIndex.ENTRY);
+        }
+        catch(NoSuchFileException exc) {
+            // scans start at the first record instead.
+        }
+        return new MappedSegment(data, index, (int) segment.end, segment);
+    }
+
+    // records whose seq or time (field) is at least from, in order, until visitor says stop.
+    void scan(int field, long from, Segment.Visitor visitor) {
+        Segment.scan(data, (int) floor(field, field == SegmentIndex.TIME ? from - 1 : from), end, baseSeq, baseTime, visitor);
+    }
+
+    // every record, in order.
+    void scan(Segment.Visitor visitor) {
+        Segment.scan(data, Segment.HEADER, end, baseSeq, baseTime, visitor);
+    }
+
+    // SegmentIndex.floor() over the mapped entries.
+    private long floor(int field, long key) {
+        if(index == null)
+            return Segment.HEADER;
+        long found = Segment.HEADER;
+        int lo = 0;
+        int hi = index.capacity() / SegmentIndex.ENTRY - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(index.getLong(mid * SegmentIndex.ENTRY + field * 8) <= key) {
+                found = index.getLong(mid * SegmentIndex.ENTRY + 16);
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,59 @@
+package source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Blocking counterpart of FrameDecoder for the thread-per-connection code: reads one
+// message at a time from a socket stream, whichever of the two formats the peer speaks.
+public class MessageReader implements FrameDecoder.Listener {
+    private final InputStream in;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final byte[] raw = new byte[8 * 1024];
+    private ChatMessage next;
+    private boolean exited;
+
+    public MessageReader(InputStream in) {
+        this.in = in;
+    }
+
+    // next chat message, room command or history, null once the peer sent EXIT or closed the connection.
+    public ChatMessage read() throws IOException {
+        ByteBuffer chunk = null;
+        while(!exited) {
+            boolean ok = chunk == null ? decoder.decode(this) : decoder.decode(chunk, this);
+            if(!ok)
+                throw new IOException("Malformed message from peer");
+            if(next != null) {
+                ChatMessage msg = next;
+                next = null;
+                return msg;
+            }
+            if(exited)
+                break;
+            int n = in.read(raw);
+            if(n < 0)
+                return null;
+            chunk = ByteBuffer.wrap(raw, 0, n);
+        }
+        return null;
+    }
+
+    // true once the peer has sent the binary handshake.
+    public boolean isBinary() {
+        return decoder.isBinary();
+    }
+
+    @Override
+    public boolean onFrame(byte type, int seq, ByteBuffer payload) {
+        if(type == Frame.EXIT) {
+            exited = true;
+            return false;
+        }
+        if(Frame.isMessage(type) || type == Frame.HISTORY) {
+            next = ChatMessage.copyOf(type, seq, payload);
+            return false;
+        }
+        return true;  // HELLO, or a type this version does not know: skip it.
+    }
+}
@@ -0,0 +1,51 @@
+package source;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Blocking writer for either wire format. In binary mode chat text, including a plain
+// "exit", always travels as a CHAT frame and only writeExit() ends the session.
+public class MessageWriter {
+    private final OutputStream out;
+    private boolean binary;
+    private int seq;
+
+    public MessageWriter(OutputStream out, boolean binary) throws IOException {
+        this.out = new BufferedOutputStream(out);
+        if(binary)
+            setBinary();
+    }
+
+    // switches to frames, the peer is told with the handshake.
+    public synchronized void setBinary() throws IOException {
+        if(binary)
+            return;
+        binary = true;
+        out.write(Frame.HANDSHAKE);
+    }
+
+    // typed text; in binary mode /join, /leave and /rooms go out as their control frames.
+    public synchronized void write(String msg) throws IOException {
+        byte[] text = msg.getBytes(StandardCharsets.UTF_8);
+        if(binary) {
+            byte type = Frame.lineType(ByteBuffer.wrap(text));
+            if(type == Frame.EXIT)
+                type = Frame.CHAT;
+            int skip = Frame.commandLength(type);
+            out.write(Frame.encode(type, ++seq, Arrays.copyOfRange(text, skip, text.length)));
+        }
+        else {
+            out.write(new ChatMessage(Frame.CHAT, ++seq, text).line());
+        }
+        out.flush();
+    }
+
+    public synchronized void writeExit() throws IOException {
+        out.write(binary ? Frame.encode(Frame.EXIT, ++seq, new byte[0]) : ChatMessage.EXIT.line());
+        out.flush();
+    }
+}
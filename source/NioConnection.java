@@ -0,0 +1,194 @@
+package source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Connection driven by an EventLoop. Reads go through a FrameDecoder, so the peer may
+// speak either wire format; writes are queued and drained when the socket is writable,
+// everything queued since the last flush going out in a single gathering write.
+class NioConnection extends ChatConnection implements FrameDecoder.Listener {
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final FrameDecoder decoder = new FrameDecoder();
+    // most buffers handed to one writev, well under the kernel's IOV_MAX.
+    private static final int MAX_GATHER = 64;
+    // taken from outbound but not fully written yet: ByteBuffers and FileRegions, loop thread only.
+    private final ArrayDeque<Object> writing = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile int inFlight;  // writing.size() as of the last flush, for other threads.
+    private volatile boolean open = true;
+
+    private volatile boolean readPaused;
+
+    NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+        super(loop.getServer().getBackpressure());
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    @Override
+    protected void messageQueued() {
+        if(flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    void read(ByteBuffer buf) {
+        int n;
+        buf.clear();
+        try {
+            n = channel.read(buf);
+        }
+        catch(IOException exc) {
+            n = -1;
+        }
+        if(n < 0) {
+            closeNow();
+            return;
+        }
+        buf.flip();
+        if(!decoder.decode(buf, this))
+            closeNow();  // neither a chat line nor a valid frame.
+    }
+
+    @Override
+    public boolean onFrame(byte type, int seq, ByteBuffer payload) {
+        if(type == Frame.HELLO) {
+            switchToBinary();
+        }
+        else if(type == Frame.EXIT) {
+            closeNow();
+            return false;
+        }
+        else if(Frame.isMessage(type)) {
+            loop.getServer().received(this, ChatMessage.copyOf(type, seq, payload));
+        }
+        return open;
+    }
+
+    void flush() {
+        flushScheduled.set(false);
+        if(!open)
+            return;
+        int calls = 0;
+        int messages = 0;
+        boolean coalescing = loop.getServer().isCoalescing();
+        try {
+            while(true) {
+                Object next;
+                while(writing.size() < MAX_GATHER && (coalescing || writing.isEmpty()) && (next = outbound.poll()) != null)
+                    writing.add(next instanceof byte[] ? ByteBuffer.wrap((byte[]) next) : next);
+                if(writing.isEmpty())
+                    break;
+                if(writing.peek() instanceof FileRegion) {
+                    FileRegion region = (FileRegion) writing.peek();
+                    region.transferTo(channel);
+                    calls++;
+                    if(region.remaining() > 0)
+                        break;  // socket buffer is full, wait for OP_WRITE.
+                    writing.poll();
+                    messages++;
+                    continue;
+                }
+                // the buffers in front of the next region, if any, go out in one writev.
+                int n = 0;
+                for(Object item : writing) {
+                    if(!(item instanceof ByteBuffer) || n == MAX_GATHER)
+                        break;
+                    gather[n++] = (ByteBuffer) item;
+                }
+                channel.write(gather, 0, n);
+                calls++;
+                boolean full = gather[n - 1].hasRemaining();
+                while(!writing.isEmpty() && writing.peek() instanceof ByteBuffer && !((ByteBuffer) writing.peek()).hasRemaining()) {
+                    writing.poll();
+                    messages++;
+                }
+                Arrays.fill(gather, 0, n, null);
+                if(full)
+                    break;
+            }
+        }
+        catch(IOException exc) {
+            closeNow();
+            return;
+        }
+        finally {
+            inFlight = writing.size();
+            loop.getServer().wrote(calls, messages);
+        }
+        updateInterest();
+    }
+
+    @Override
+    int inFlight() {
+        return inFlight;
+    }
+
+    private void updateInterest() {
+        if(key.isValid())
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    @Override
+    void pauseReading() {
+        readPaused = true;
+        interestChanged();
+    }
+
+    @Override
+    void resumeReading() {
+        readPaused = false;
+        interestChanged();
+    }
+
+    private void interestChanged() {
+        if(loop.inLoop()) {
+            updateInterest();
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                updateInterest();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        if(loop.inLoop()) {
+            closeNow();
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeNow();
+            }
+        });
+    }
+
+    void closeNow() {
+        if(!open)
+            return;
+        open = false;
+        outbound.close();
+        key.cancel();
+        EventLoop.closeQuietly(channel);
+        loop.getServer().closed(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+}
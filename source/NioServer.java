@@ -0,0 +1,124 @@
+package source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+// Selector based server: one acceptor thread plus a small fixed set of event loops
+// serve every client, whether it speaks text lines or binary frames (see FrameDecoder).
+public class NioServer extends ChatServer {
+    private final int port;
+    private final EventLoop[] loops;
+
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private Thread acceptor;
+    private volatile boolean running;
+    private volatile boolean accepting;
+
+    public NioServer(int port, int workers, ChatHandler handler) {
+        super(handler);
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, workers)];
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        accepting = true;
+        for(int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this, "nio-loop-" + i);
+            loops[i].start();
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "nio-acceptor");
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while(accepting) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+                    SocketChannel ch;
+                    // drain the whole backlog, a burst of connects only costs one wakeup.
+                    while((ch = serverChannel.accept()) != null) {
+                        ch.configureBlocking(false);
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        loops[next].register(ch);
+                        next = (next + 1) % loops.length;  // round robin, never overflows
+                    }
+                }
+            }
+            catch(IOException exc) {
+                if(accepting)
+                    System.out.println("Opps! Could Not Accept The Connection: " + exc);
+            }
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    void stopAccepting() {
+        if(!accepting)
+            return;
+        accepting = false;
+        try {
+            acceptSelector.wakeup();
+            acceptor.join();
+            acceptSelector.close();
+            serverChannel.close();
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Close The Server: " + exc);
+        }
+        catch(InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if(!running)
+            return;
+        stopAccepting();
+        running = false;
+        try {
+            for(EventLoop loop : loops) {
+                loop.wakeup();
+                loop.join();
+            }
+        }
+        catch(InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package source;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Encoded messages waiting for one connection's writer. Producers never wait on it: the
+// bytes waiting are kept under the connection's Backpressure watermarks, so a peer that
+// falls behind only costs itself and the sender and every other recipient carry on.
+// The queue also decides the wire format, so a switch to frames cannot interleave with
+// lines queued before it. Items are encoded messages (byte[]) or FileRegions.
+class OutboundQueue {
+    private final ArrayDeque<Object> messages = new ArrayDeque<>();
+    private final ChatConnection owner;
+    private final Backpressure backpressure;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long pendingBytes;
+    private long dropped;
+    private boolean paused;  // over the high watermark with PAUSE_READING, until back to the low one
+    private final List<ChatConnection> feeders = new ArrayList<>();  // throttled while paused
+    private boolean closed;
+    private boolean binary;
+
+    OutboundQueue(ChatConnection owner, Backpressure backpressure) {
+        this.owner = owner;
+        this.backpressure = backpressure;
+    }
+
+    // false if msg was not queued; the owner is told to close when the policy says so. from
+    // is the peer msg is relayed from, null for the server's own messages.
+    boolean offer(ChatMessage msg, ChatConnection from) {
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if(closed)
+                return false;
+            byte[] bytes = binary ? msg.frame() : msg.line();
+            if(!admit(bytes.length, from)) {
+                if(backpressure.getPolicy() == Backpressure.Policy.DISCONNECT)
+                    disconnect = true;
+                return false;
+            }
+            add(bytes, bytes.length);
+            return true;
+        }
+        finally {
+            lock.unlock();
+            if(disconnect)
+                owner.close();
+        }
+    }
+
+    // history replay: the region's bytes as they are in the file, behind a HISTORY frame
+    // header for a peer that speaks frames.
+    boolean offer(FileRegion region) {
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if(closed)
+                return false;
+            if(binary)
+                region.setHeader(Frame.header(Frame.HISTORY, 0, (int) region.remaining()));
+            int length = (int) region.remaining();
+            if(!admit(length, null)) {
+                if(backpressure.getPolicy() == Backpressure.Policy.DISCONNECT)
+                    disconnect = true;
+                return false;
+            }
+            add(region, length);
+            return true;
+        }
+        finally {
+            lock.unlock();
+            if(disconnect)
+                owner.close();
+        }
+    }
+
+    // applies the backpressure policy to `length` more bytes, false if they must not be queued.
+    private boolean admit(int length, ChatConnection from) {
+        if(pendingBytes + length > backpressure.getHighWatermark()) {
+            switch(backpressure.getPolicy()) {
+                case DROP_OLDEST:
+                    backpressure.recordFired();
+                    dropOldest(backpressure.getLowWatermark() - length);
+                    break;
+                case DISCONNECT:
+                    backpressure.recordFired();
+                    backpressure.recordDisconnected();
+                    closed = true;
+                    return false;
+                case PAUSE_READING:
+                    if(!paused) {
+                        backpressure.recordFired();
+                        paused = true;
+                    }
+                    if(from != null && !feeders.contains(from)) {
+                        backpressure.recordPaused();
+                        feeders.add(from);
+                        from.throttle();  // it is what fills this queue, not our own peer
+                    }
+                    if(pendingBytes + length > 2L * backpressure.getHighWatermark()) {
+                        dropped++;
+                        backpressure.recordDropped(1);
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void dropOldest(long target) {
+        int count = 0;
+        Iterator<Object> it = messages.iterator();
+        while(pendingBytes > Math.max(0, target) && it.hasNext()) {
+            Object oldest = it.next();
+            if(oldest == Frame.HANDSHAKE || oldest instanceof FileRegion)
+                continue;  // the peer must still see the switch to frames, and replays are kept whole.
+            it.remove();
+            pendingBytes -= sizeOf(oldest);
+            count++;
+        }
+        dropped += count;
+        backpressure.recordDropped(count);
+    }
+
+    private void add(Object item, int size) {
+        messages.add(item);
+        pendingBytes += size;
+        notEmpty.signal();
+    }
+
+    private static long sizeOf(Object item) {
+        return item instanceof FileRegion ? ((FileRegion) item).remaining() : ((byte[]) item).length;
+    }
+
+    // queues the handshake reply, everything offered after it is encoded as frames.
+    boolean switchToBinary() {
+        lock.lock();
+        try {
+            if(binary || closed)
+                return false;
+            binary = true;
+            add(Frame.HANDSHAKE, Frame.HANDSHAKE.length);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    Object poll() {
+        lock.lock();
+        try {
+            return taken(messages.poll());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // waits for the next message, null once closed and everything queued has been taken.
+    Object take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(messages.isEmpty() && !closed)
+                notEmpty.await();
+            return taken(messages.poll());
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Object taken(Object item) {
+        if(item != null) {
+            pendingBytes -= sizeOf(item);
+            if(paused && pendingBytes <= backpressure.getLowWatermark()) {
+                paused = false;
+                releaseFeeders();
+            }
+        }
+        return item;
+    }
+
+    private void releaseFeeders() {
+        for(ChatConnection feeder : feeders)
+            feeder.unthrottle();
+        feeders.clear();
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            releaseFeeders();  // a peer that went away holds nobody up
+            notEmpty.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getPendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// A participant's end of LogService: records go to the owning process over loopback and
+// come back with the sequence number the owner gave them. If the owner goes away the
+// next record makes this process the owner, so the log carries on with whoever is left.
+class RemoteLog implements ChatLog {
+    private final File log;
+    private final int port;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private ChatLog next;  // once the owner went away: the log itself if this process took it over, else whoever did
+
+    RemoteLog(File log, int port) throws IOException {
+        this.log = log;
+        this.port = port;
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    @Override
+    public synchronized long append(int sender, String text) throws IOException {
+        if(next != null)
+            return next.append(sender, text);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > Frame.MAX_PAYLOAD)
+            bytes = SegmentedLog.truncate(bytes);  // the owner drops a connection that sends more
+        try {
+            out.writeInt(bytes.length);
+            out.writeInt(sender);
+            out.write(bytes);
+            out.flush();
+            return in.readLong();
+        }
+        catch(IOException exc) {
+            // the owner is gone, or dropped us. Only if this process gets the log is the record
+            // tried again: the owner's answer may have been lost after it logged the record,
+            // so in that rare case the record is in the log twice rather than not at all.
+            LogService.closeQuietly(socket);
+            next = LogService.open(log, port);
+            if(next instanceof RemoteLog)
+                throw exc;  // someone else owns it, later records go there
+            return next.append(sender, text);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(next != null)
+            next.close();
+        else
+            socket.close();
+    }
+}
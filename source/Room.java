@@ -0,0 +1,38 @@
+package source;
+
+import java.nio.charset.StandardCharsets;
+
+// A named conversation kept in a RoomRegistry. A room that empties is closed and dropped
+// from the registry; a join racing with that sees the closed room and looks it up again.
+public class Room extends Conversation {
+    private final String name;
+    private final byte[] prefix;
+    private boolean closed;
+
+    Room(String name) {
+        this.name = name;
+        this.prefix = ("#" + name + " ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // "#name " as UTF-8, put in front of messages relayed in this room.
+    public byte[] getPrefix() {
+        return prefix;
+    }
+
+    synchronized boolean add(ChatConnection conn) {
+        if(closed)
+            return false;
+        join(conn);
+        return true;
+    }
+
+    synchronized boolean closeIfEmpty() {
+        if(size() == 0)
+            closed = true;
+        return closed;
+    }
+}
@@ -0,0 +1,108 @@
+package source;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Contention benchmark for RoomRegistry: many threads mixing joins, leaves and broadcasts
+// over hundreds of rooms and thousands of members, once with a single shard (one lock for
+// the whole registry) and once sharded.
+// usage: RoomBench [rooms] [members] [threads] [seconds]
+class RoomBench {
+    // stands in for a socket, only counts what it would have been sent.
+    static class CountingConnection extends ChatConnection {
+        static final LongAdder delivered = new LongAdder();
+
+        CountingConnection() {
+            super(Backpressure.fromSystemProperties());
+        }
+
+        @Override
+        public boolean send(ChatMessage msg) {
+            delivered.increment();
+            return true;
+        }
+
+        @Override
+        protected void messageQueued() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        System.out.println("rooms=" + rooms + " members=" + members + " threads=" + threads);
+        System.out.println("shards  ops/sec  joins+leaves/sec  broadcasts/sec  deliveries/sec");
+        run(1, rooms, members, threads, seconds);
+        run(Runtime.getRuntime().availableProcessors() * 4, rooms, members, threads, seconds);
+    }
+
+    private static void run(int shards, final int rooms, int members, int threads, int seconds) throws InterruptedException {
+        final RoomRegistry registry = new RoomRegistry(shards);
+        final List<ChatConnection> conns = new ArrayList<>();
+        for(int i = 0; i < members; i++) {
+            ChatConnection conn = new CountingConnection();
+            conns.add(conn);
+            registry.join("room-" + (i % rooms), conn);
+        }
+        final ChatMessage msg = ChatMessage.of("Wanna catchup for Birtday party?");
+        final LongAdder membership = new LongAdder();
+        final LongAdder broadcasts = new LongAdder();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        CountingConnection.delivered.reset();
+
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while(running.get()) {
+                        ChatConnection conn = conns.get(random.nextInt(conns.size()));
+                        int op = random.nextInt(10);
+                        if(op == 0) {
+                            registry.join("room-" + random.nextInt(rooms), conn);
+                            membership.increment();
+                        }
+                        else if(op == 1) {
+                            for(Room room : conn.getRooms()) {
+                                if(conn.getRooms().size() > 1)
+                                    registry.leave(room.getName(), conn);
+                                break;
+                            }
+                            membership.increment();
+                        }
+                        else {
+                            for(Room room : conn.getRooms())
+                                room.broadcast(conn, msg);
+                            broadcasts.increment();
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for(Thread worker : workers)
+            worker.join();
+
+        long ops = membership.sum() + broadcasts.sum();
+        System.out.printf("%6d  %7d  %16d  %14d  %14d%n", registry.getShardCount(),
+                ops / seconds, membership.sum() / seconds, broadcasts.sum() / seconds, CountingConnection.delivered.sum() / seconds);
+    }
+}
@@ -0,0 +1,100 @@
+package source;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// All named rooms, spread over independently locked shards by name so joins and leaves
+// in different rooms rarely meet on the same lock. Broadcasting takes no registry lock
+// at all: a member already holds its Room and Room membership is copy-on-write.
+public class RoomRegistry {
+    private final HashMap<String, Room>[] shards;
+    private final int mask;
+
+    public RoomRegistry() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })  // new HashMap<String, Room>[n] is not allowed
+    public RoomRegistry(int shardCount) {
+        int n = 1;
+        while(n < shardCount)
+            n <<= 1;
+        shards = new HashMap[n];
+        for(int i = 0; i < n; i++)
+            shards[i] = new HashMap<>();
+        mask = n - 1;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private HashMap<String, Room> shardFor(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    // creates the room on first join.
+    public Room join(String name, ChatConnection conn) {
+        HashMap<String, Room> shard = shardFor(name);
+        while(true) {
+            Room room;
+            synchronized(shard) {
+                room = shard.get(name);
+                if(room == null) {
+                    room = new Room(name);
+                    shard.put(name, room);
+                }
+            }
+            if(room.add(conn)) {
+                conn.joined(room);
+                return room;
+            }
+            // the room emptied and closed meanwhile, look again (it is gone by now).
+            synchronized(shard) {
+                shard.remove(name, room);
+            }
+        }
+    }
+
+    public boolean leave(String name, ChatConnection conn) {
+        HashMap<String, Room> shard = shardFor(name);
+        Room room;
+        synchronized(shard) {
+            room = shard.get(name);
+        }
+        if(room == null || !room.leave(conn))
+            return false;
+        conn.left(room);
+        if(room.size() == 0 && room.closeIfEmpty()) {
+            synchronized(shard) {
+                shard.remove(name, room);
+            }
+        }
+        return true;
+    }
+
+    // for a connection that went away.
+    public void leaveAll(ChatConnection conn) {
+        for(Room room : conn.getRooms())
+            leave(room.getName(), conn);
+    }
+
+    public Room get(String name) {
+        HashMap<String, Room> shard = shardFor(name);
+        synchronized(shard) {
+            return shard.get(name);
+        }
+    }
+
+    public List<Room> list() {
+        List<Room> rooms = new ArrayList<>();
+        for(HashMap<String, Room> shard : shards) {
+            synchronized(shard) {
+                rooms.addAll(shard.values());
+            }
+        }
+        return rooms;
+    }
+}
@@ -0,0 +1,602 @@
+package source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Full-text index over the chat log: for every term, which messages (by seq) contain it
+// and at which word positions, so "who said X" is a lookup instead of a grep. It is one
+// more LogSink next to the segments, so it stays current as messages are logged; close()
+// snapshots it to a file and open() loads that and catches up from the log.
+//
+// A term's postings are one growing byte[]: per message a varint seq delta, a varint count
+// and varint position deltas. Every SKIP messages the seq starts again from 0 and the
+// block is remembered, so an AND can jump to the block it needs instead of decoding all.
+public class SearchIndex implements LogSink {
+    static final int SKIP = 64;
+    private static final int MAGIC = 0x43484654;  // "CHFT"
+    private static final int VERSION = 1;
+    private static final int MAX_TERM = 64;
+    private static final long END = Long.MAX_VALUE;
+
+    private final File file;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final TreeMap<String, Postings> sorted = new TreeMap<>();  // the same, for prefix queries
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long nextSeq;
+
+    private SearchIndex(File file) {
+        this.file = file;
+    }
+
+    // loads the snapshot in file, if there is one that fits log, and indexes whatever was
+    // logged after it.
+    public static SearchIndex open(File file, SegmentedLog log) throws IOException {
+        SearchIndex index = new SearchIndex(file);
+        if(file.exists() && !index.load(log.getNextSeq()))
+            index.clear();
+        final SearchIndex target = index;
+        log.forEach(index.nextSeq, new Segment.Visitor() {
+            @Override
+            public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                target.add(seq, sender, StandardCharsets.UTF_8.decode(payload).toString());
+                return true;
+            }
+        });
+        return index;
+    }
+
+    @Override
+    public void write(long seq, long time, int sender, String text) {
+        add(seq, sender, text);
+    }
+
+    private void add(long seq, int sender, String text) {
+        if(sender == SESSION || seq < nextSeq)
+            return;
+        List<String> words = tokens(text);
+        List<Postings> touched = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for(int i = 0; i < words.size(); i++) {
+                Postings postings = terms.get(words.get(i));
+                if(postings == null) {
+                    terms.put(words.get(i), postings = new Postings());
+                    sorted.put(words.get(i), postings);
+                }
+                if(postings.pendingCount == 0)
+                    touched.add(postings);
+                postings.pending(i);
+            }
+            for(Postings postings : touched)
+                postings.add(seq);
+            nextSeq = seq + 1;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // lower-cased runs of letters and digits, apostrophes dropped so "don't" is "dont".
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for(int i = 0; i <= text.length(); ) {
+            if(word.length() == 0) {
+                // most words are already lower-case ascii, those are taken as they are.
+                int end = i;
+                while(end < text.length() && end - i < MAX_TERM && plain(text.charAt(end)))
+                    end++;
+                if(end > i && (end == text.length() || !wordChar(text.codePointAt(end)))) {
+                    tokens.add(text.substring(i, end));
+                    i = end;
+                    continue;
+                }
+            }
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if(Character.isLetterOrDigit(c)) {
+                if(word.length() < MAX_TERM)
+                    word.appendCodePoint(Character.toLowerCase(c));
+            }
+            else if(c != '\'' && c != '\u2019' && word.length() > 0) {
+                tokens.add(word.toString());
+                word.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return tokens;
+    }
+
+    private static boolean plain(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean wordChar(int c) {
+        return Character.isLetterOrDigit(c) || c == '\'' || c == '\u2019';
+    }
+
+    // Seqs of the messages matching every part of query, newest first, at most limit of
+    // them. Parts are words, "quoted phrases" and prefix* words. The newest messages are
+    // searched first, in windows growing backwards, so a common word does not cost a walk
+    // over its whole history just to show the last few.
+    public List<Long> search(String query, int limit) {
+        List<String> parts = parse(query);
+        List<Long> hits = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            long to = nextSeq;
+            for(long window = 4 * 1024; hits.size() < limit && to > 0; window *= 4) {
+                List<Clause> clauses = clauses(parts);
+                if(clauses == null)
+                    break;
+                long from = Math.max(0, to - window);
+                List<Long> found = match(clauses, from, to);
+                for(int i = found.size() - 1; i >= 0 && hits.size() < limit; i--)
+                    hits.add(found.get(i));
+                to = from;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return hits;
+    }
+
+    // null if nothing can match.
+    private List<Clause> clauses(List<String> parts) {
+        List<Clause> clauses = new ArrayList<>();
+        for(String part : parts) {
+            Clause clause = clause(part);
+            if(clause == null)
+                return null;  // a word nobody ever said
+            if(clause != NOTHING_TO_CHECK)
+                clauses.add(clause);
+        }
+        if(clauses.isEmpty())
+            return null;
+        clauses.sort(new Comparator<Clause>() {
+            @Override
+            public int compare(Clause a, Clause b) {
+                return Long.compare(a.cost(), b.cost());  // rarest first
+            }
+        });
+        return clauses;
+    }
+
+    // seqs in [from, to) every clause matches: each clause in turn jumps to the highest
+    // seq any of them is at, until they all agree.
+    private static List<Long> match(List<Clause> clauses, long from, long to) {
+        List<Long> found = new ArrayList<>();
+        long target = from;
+        int agreed = 0;
+        for(int i = 0; ; i = (i + 1) % clauses.size()) {
+            long seq = clauses.get(i).advance(target);
+            if(seq >= to)
+                break;
+            if(seq == target) {
+                agreed++;
+            }
+            else {
+                target = seq;
+                agreed = 1;
+            }
+            if(agreed == clauses.size()) {
+                found.add(target++);
+                agreed = 0;
+            }
+        }
+        return found;
+    }
+
+    private static List<String> parse(String query) {
+        List<String> parts = new ArrayList<>();
+        int i = 0;
+        while(i < query.length()) {
+            char c = query.charAt(i);
+            if(c == '"') {
+                int close = query.indexOf('"', i + 1);
+                if(close < 0)
+                    close = query.length();
+                parts.add(query.substring(i, close));  // keeps the opening quote as a marker
+                i = close + 1;
+            }
+            else if(Character.isWhitespace(c)) {
+                i++;
+            }
+            else {
+                int end = i;
+                while(end < query.length() && !Character.isWhitespace(query.charAt(end)) && query.charAt(end) != '"')
+                    end++;
+                parts.add(query.substring(i, end));
+                i = end;
+            }
+        }
+        return parts;
+    }
+
+    private static final Clause NOTHING_TO_CHECK = new Clause() {
+        @Override
+        public long advance(long target) {
+            return target;
+        }
+
+        @Override
+        public long cost() {
+            return 0;
+        }
+    };
+
+    // null if the part can not match anything.
+    private Clause clause(String part) {
+        if(part.startsWith("\"")) {
+            List<String> words = tokens(part.substring(1));
+            if(words.isEmpty())
+                return NOTHING_TO_CHECK;
+            Cursor[] cursors = new Cursor[words.size()];
+            for(int i = 0; i < cursors.length; i++) {
+                Postings postings = terms.get(words.get(i));
+                if(postings == null)
+                    return null;
+                cursors[i] = new Cursor(postings);
+            }
+            return cursors.length == 1 ? cursors[0] : new Phrase(cursors);
+        }
+        if(part.endsWith("*")) {
+            List<String> words = tokens(part.substring(0, part.length() - 1));
+            if(words.size() != 1)
+                return words.isEmpty() ? NOTHING_TO_CHECK : null;
+            String prefix = words.get(0);
+            Map<String, Postings> expansions = sorted.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+            return expansions.isEmpty() ? null : new Union(expansions.values());
+        }
+        List<String> words = tokens(part);
+        if(words.isEmpty())
+            return NOTHING_TO_CHECK;
+        if(words.size() > 1)
+            return clause("\"" + part);  // "birthday-party" is the phrase it looks like
+        Postings postings = terms.get(words.get(0));
+        return postings == null ? null : new Cursor(postings);
+    }
+
+    interface Clause {
+        // the first matching seq at or after target, END when there is none.
+        long advance(long target);
+
+        // roughly how many messages can match, to try the rarest clause first.
+        long cost();
+    }
+
+    // one term's messages, in seq order.
+    static final class Postings {
+        byte[] bytes = new byte[16];
+        int length;
+        int docs;
+        long lastSeq = -1;
+        long[] blockSeqs = new long[1];  // first seq of every SKIP-message block
+        int[] blockOffsets = new int[1];
+        int blocks;
+
+        // positions in the message being added, writer only.
+        private int[] pending = new int[2];
+        private int pendingCount;
+
+        void pending(int position) {
+            if(pendingCount == pending.length)
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            pending[pendingCount++] = position;
+        }
+
+        // the pending positions, as message seq.
+        void add(long seq) {
+            long base = lastSeq;
+            if(docs % SKIP == 0) {
+                if(blocks == blockSeqs.length) {
+                    blockSeqs = Arrays.copyOf(blockSeqs, blocks * 2);
+                    blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+                }
+                blockSeqs[blocks] = seq;
+                blockOffsets[blocks++] = length;
+                base = 0;
+            }
+            ensure(10 + 5 + 5 * pendingCount);
+            putVarint(seq - base);
+            putVarint(pendingCount);
+            int last = 0;
+            for(int i = 0; i < pendingCount; i++) {
+                putVarint(pending[i] - last);
+                last = pending[i];
+            }
+            pendingCount = 0;
+            lastSeq = seq;
+            docs++;
+        }
+
+        private void ensure(int more) {
+            if(length + more > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+        }
+
+        private void putVarint(long v) {
+            while((v & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[length++] = (byte) v;
+        }
+    }
+
+    // walks one term's postings; advance() jumps whole blocks when it can.
+    static final class Cursor implements Clause {
+        private final Postings postings;
+        private int offset;
+        private int doc;  // index of the next message to decode
+        private long seq = -1;
+        private int count;
+        private int positionsAt;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        @Override
+        public long cost() {
+            return postings.docs;
+        }
+
+        @Override
+        public long advance(long target) {
+            if(seq >= target)
+                return seq;
+            // the last block starting at or before target, if it is ahead of us.
+            int lo = doc / SKIP;
+            int hi = postings.blocks - 1;
+            int block = -1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(postings.blockSeqs[mid] <= target) {
+                    block = mid;
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid - 1;
+                }
+            }
+            if(block >= 0 && block * SKIP > doc) {
+                doc = block * SKIP;
+                offset = postings.blockOffsets[block];
+            }
+            while(seq < target) {
+                if(doc == postings.docs) {
+                    seq = END;
+                    break;
+                }
+                long base = doc % SKIP == 0 ? 0 : seq;
+                seq = base + varint();
+                count = (int) varint();
+                positionsAt = offset;
+                for(int i = 0; i < count; i++)
+                    varint();
+                doc++;
+            }
+            return seq;
+        }
+
+        // word positions of the current message.
+        int[] positions() {
+            int[] positions = new int[count];
+            int saved = offset;
+            offset = positionsAt;
+            int last = 0;
+            for(int i = 0; i < count; i++)
+                positions[i] = last += (int) varint();
+            offset = saved;
+            return positions;
+        }
+
+        private long varint() {
+            long v = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = postings.bytes[offset++];
+                v |= (long) (b & 0x7F) << shift;
+                if(b >= 0)
+                    return v;
+            }
+        }
+    }
+
+    // messages with every word, then the words one after another.
+    static final class Phrase implements Clause {
+        private final Cursor[] words;
+
+        Phrase(Cursor[] words) {
+            this.words = words;
+        }
+
+        @Override
+        public long cost() {
+            long min = END;
+            for(Cursor word : words)
+                min = Math.min(min, word.cost());
+            return min;
+        }
+
+        @Override
+        public long advance(long target) {
+            while(true) {
+                long seq = target;
+                boolean all = false;
+                while(!all) {
+                    all = true;
+                    for(Cursor word : words) {
+                        long s = word.advance(seq);
+                        if(s == END)
+                            return END;
+                        if(s != seq) {
+                            seq = s;
+                            all = false;
+                        }
+                    }
+                }
+                if(adjacent())
+                    return seq;
+                target = seq + 1;
+            }
+        }
+
+        private boolean adjacent() {
+            int[] first = words[0].positions();
+            int[][] rest = new int[words.length][];
+            for(int i = 1; i < words.length; i++)
+                rest[i] = words[i].positions();
+            for(int start : first) {
+                boolean match = true;
+                for(int i = 1; i < words.length && match; i++)
+                    match = Arrays.binarySearch(rest[i], start + i) >= 0;
+                if(match)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // messages with any of the words a prefix expands to.
+    static final class Union implements Clause {
+        private final Cursor[] words;
+        private final long cost;
+
+        Union(Iterable<Postings> postings) {
+            List<Cursor> cursors = new ArrayList<>();
+            long docs = 0;
+            for(Postings p : postings) {
+                cursors.add(new Cursor(p));
+                docs += p.docs;
+            }
+            this.words = cursors.toArray(new Cursor[0]);
+            this.cost = docs;
+        }
+
+        @Override
+        public long cost() {
+            return cost;
+        }
+
+        @Override
+        public long advance(long target) {
+            long min = END;
+            for(Cursor word : words)
+                min = Math.min(min, word.advance(target));
+            return min;
+        }
+    }
+
+    // terms indexed so far.
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the seq of the next message to index, everything before it has been.
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    private void clear() {
+        terms.clear();
+        sorted.clear();
+        nextSeq = 0;
+    }
+
+    // false if the snapshot does not fit a log that ends before logNextSeq.
+    private boolean load(long logNextSeq) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return false;
+            nextSeq = in.readLong();
+            if(nextSeq > logNextSeq)
+                return false;  // the log was started over
+            int count = in.readInt();
+            for(int t = 0; t < count; t++) {
+                String term = in.readUTF();
+                Postings p = new Postings();
+                p.docs = in.readInt();
+                p.lastSeq = in.readLong();
+                p.length = in.readInt();
+                p.bytes = new byte[Math.max(16, p.length)];
+                in.readFully(p.bytes, 0, p.length);
+                p.blocks = in.readInt();
+                p.blockSeqs = new long[Math.max(1, p.blocks)];
+                p.blockOffsets = new int[Math.max(1, p.blocks)];
+                for(int b = 0; b < p.blocks; b++) {
+                    p.blockSeqs[b] = in.readLong();
+                    p.blockOffsets[b] = in.readInt();
+                }
+                terms.put(term, p);
+                sorted.put(term, p);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    // rebuilt from the log after a crash, nothing to force.
+    @Override
+    public void sync() {
+    }
+
+    // snapshots the index next to the log, replacing the previous snapshot in one move.
+    @Override
+    public void close() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        lock.readLock().lock();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextSeq);
+            out.writeInt(terms.size());
+            for(Map.Entry<String, Postings> entry : sorted.entrySet()) {
+                Postings p = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(p.docs);
+                out.writeLong(p.lastSeq);
+                out.writeInt(p.length);
+                out.write(p.bytes, 0, p.length);
+                out.writeInt(p.blocks);
+                for(int b = 0; b < p.blocks; b++) {
+                    out.writeLong(p.blockSeqs[b]);
+                    out.writeInt(p.blockOffsets[b]);
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,352 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// One file of a SegmentedLog, named after the sequence number of its first record.
+//
+//   header  int magic "CHAT", short version, short flags, long baseSeq, long baseTime, long 0
+//   record  int length (of what follows), int CRC32C (of what follows it), varint
+//           seq - baseSeq, zigzag varint time - baseTime, zigzag varint sender, UTF-8 text
+//   footer  int -1, int magic "SEAL", int records, int 0, long lastSeq, long lastTime
+//
+// A segment is appended to until it is sealed: the footer is written and synced, then
+// the SEALED flag is set in the header. The footer's -1 stops a record scan, so a crash
+// between the two leaves a segment that still reads correctly. So does a record the
+// crash tore or the disk damaged: its checksum stops the scan there. A record's seq and
+// time are kept as their distance from the segment's first, a few bytes rather than 16.
+final class Segment {
+    static final int MAGIC = 0x43484154;         // "CHAT"
+    static final int FOOTER_MAGIC = 0x5345414C;  // "SEAL"
+    static final short VERSION = 3;
+    static final short FLAG_SEALED = 1;
+    static final int HEADER = 32;
+    static final int FOOTER = 32;
+    static final int RECORD_HEADER = 28;  // at most, 4 + 4 + 5 + 10 + 5
+    private static final int MIN_LENGTH = 7;  // of what follows a record's length, with no text
+    static final int MAX_RECORD = RECORD_HEADER + Frame.MAX_PAYLOAD;
+    private static final int FLAGS_OFFSET = 6;
+
+    final File file;
+    final long baseSeq;
+    final long baseTime;
+    boolean sealed;
+    int records;
+    long lastSeq;
+    long lastTime;
+    long end;  // offset after the last complete record
+    private MappedSegment mapped;  // once sealed and first read
+    private volatile CompressedSegment compressed;  // once rewritten as a .logz
+
+    private Segment(File file, long baseSeq, long baseTime) {
+        this.file = file;
+        this.baseSeq = baseSeq;
+        this.baseTime = baseTime;
+        this.lastSeq = baseSeq - 1;
+        this.lastTime = baseTime;
+        this.end = HEADER;
+    }
+
+    interface Visitor {
+        // payload is only valid during the call. false stops the scan.
+        boolean record(long offset, long seq, long time, int sender, ByteBuffer payload);
+    }
+
+    static String fileName(long baseSeq) {
+        return String.format("%020d.log", baseSeq);
+    }
+
+    static boolean isSegmentFile(String name) {
+        return name.length() == 24 && name.endsWith(".log") && name.substring(0, 20).chars().allMatch(Character::isDigit);
+    }
+
+    // a new, empty segment with its header written.
+    static Segment create(File dir, long baseSeq, long baseTime, FileChannel ch) throws IOException {
+        Segment segment = new Segment(new File(dir, fileName(baseSeq)), baseSeq, baseTime);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(baseSeq).putLong(baseTime).putLong(0);
+        header.flip();
+        while(header.hasRemaining())
+            ch.write(header, header.position());
+        return segment;
+    }
+
+    // reads the header and, for a sealed segment, the footer. An unsealed one is scanned
+    // to find where its last intact record ends.
+    static Segment open(File file) throws IOException {
+        try(FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(ch, header, 0);
+            header.flip();
+            if(header.remaining() < HEADER || header.getInt() != MAGIC)
+                throw new IOException("not a chat log segment: " + file);
+            short version = header.getShort();
+            if(version != VERSION)
+                throw new IOException("unknown segment version " + version + ": " + file);
+            short flags = header.getShort();
+            Segment segment = new Segment(file, header.getLong(), header.getLong());
+            if((flags & FLAG_SEALED) != 0) {
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+                readFully(ch, footer, ch.size() - FOOTER);
+                footer.flip();
+                if(footer.getInt() == -1 && footer.getInt() == FOOTER_MAGIC) {
+                    segment.sealed = true;
+                    segment.records = footer.getInt();
+                    footer.getInt();
+                    segment.lastSeq = footer.getLong();
+                    segment.lastTime = footer.getLong();
+                    segment.end = ch.size() - FOOTER;
+                    return segment;
+                }
+            }
+            segment.recover(ch);
+            return segment;
+        }
+    }
+
+    // a segment that only exists as its .logz any more.
+    static Segment open(CompressedSegment compressed) {
+        Segment segment = new Segment(CompressedSegment.rawFileFor(compressed.file), compressed.baseSeq, compressed.baseTime);
+        segment.sealed = true;
+        segment.records = compressed.records;
+        segment.lastSeq = compressed.lastSeq;
+        segment.lastTime = compressed.lastTime;
+        segment.compressed = compressed;
+        return segment;
+    }
+
+    // finds the end of the last intact record, where the next append goes and a torn
+    // tail is cut off. Only the records after the index's last entry are read, unless that
+    // entry does not lead to the record it names, then the whole segment is.
+    private void recover(FileChannel ch) throws IOException {
+        long[] hint = SegmentIndex.last(file, ch.size());  // seq, time, offset
+        if(hint != null && recover(ch, hint[2], hint[0]))
+            return;
+        recover(ch, HEADER, baseSeq);
+    }
+
+    private boolean recover(FileChannel ch, long from, final long firstSeq) throws IOException {
+        final boolean[] found = { false };
+        lastSeq = firstSeq - 1;
+        long at = scan(ch, from, ch.size(), new Visitor() {
+            @Override
+            public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                if(!found[0] && seq != firstSeq)
+                    return false;
+                found[0] = true;
+                lastSeq = seq;
+                lastTime = time;
+                return true;
+            }
+        });
+        if(!found[0] && firstSeq != baseSeq)
+            return false;
+        end = found[0] ? at : from;
+        records = (int) (lastSeq - baseSeq + 1);  // a segment's seqs have no gaps
+        if(records == 0)
+            lastTime = baseTime;
+        return true;
+    }
+
+    // footer after the last record, then the flag; the caller closes ch afterwards.
+    void seal(FileChannel ch) throws IOException {
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+        footer.putInt(-1).putInt(FOOTER_MAGIC).putInt(records).putInt(0).putLong(lastSeq).putLong(lastTime);
+        footer.flip();
+        long pos = end;
+        while(footer.hasRemaining())
+            pos += ch.write(footer, pos);
+        ch.force(false);
+        ByteBuffer flags = ByteBuffer.allocate(2).putShort(FLAG_SEALED);
+        flags.flip();
+        ch.write(flags, FLAGS_OFFSET);
+        ch.force(false);
+        sealed = true;
+    }
+
+    // record header plus text, ready to append to the segment starting at baseSeq and
+    // baseTime. Returns the record's size.
+    static int encode(ByteBuffer buf, long baseSeq, long baseTime, long seq, long time, int sender, byte[] text) {
+        return encode(buf, baseSeq, baseTime, seq, time, sender, ByteBuffer.wrap(text));
+    }
+
+    static int encode(ByteBuffer buf, long baseSeq, long baseTime, long seq, long time, int sender, ByteBuffer text) {
+        int start = buf.position();
+        buf.position(start + 8);
+        putVarint(buf, seq - baseSeq);
+        putVarint(buf, zigzag(time - baseTime));  // appends are not strictly in time order
+        putVarint(buf, zigzag(sender));           // SESSION and CLIENT are negative
+        buf.put(text);
+        int size = buf.position() - start;
+        ByteBuffer covered = buf.duplicate();
+        covered.limit(buf.position()).position(start + 8);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        buf.putInt(start, size - 4).putInt(start + 4, (int) crc.getValue());
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buf, long value) {
+        while((value & ~0x7FL) != 0) {
+            buf.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // whether the record of the given length at buf[at] is what was written.
+    private static boolean intact(ByteBuffer buf, int at, int length) {
+        ByteBuffer covered = buf.duplicate();
+        covered.limit(at + 4 + length).position(at + 8);
+        CRC32C crc = new CRC32C();
+        crc.update(covered);
+        return buf.getInt(at + 4) == (int) crc.getValue();
+    }
+
+    // reads the seq, time and sender of the intact record at buf[at] into fields and
+    // returns where its text starts, -1 if its header runs past its end.
+    private static int fields(ByteBuffer buf, int at, int end, long baseSeq, long baseTime, long[] fields) {
+        int pos = at + 8;
+        for(int f = 0; f < 3; f++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if(pos == end || shift > 63)
+                    return -1;
+                b = buf.get(pos++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while(b < 0);
+            fields[f] = f == 0 ? value : (value >>> 1) ^ -(value & 1);
+        }
+        fields[0] += baseSeq;
+        fields[1] += baseTime;
+        return pos;
+    }
+
+    // scan() over this segment's records.
+    long scan(FileChannel ch, long from, long to, Visitor visitor) throws IOException {
+        return scan(ch, from, to, baseSeq, baseTime, visitor);
+    }
+
+    // calls visitor for each intact record in [from, to) and returns the offset after the
+    // last one. Stops early at a footer, a torn or damaged record or anything that is not
+    // a record.
+    static long scan(FileChannel ch, long from, long to, long baseSeq, long baseTime, Visitor visitor)
+            throws IOException {
+        long[] fields = new long[3];
+        ByteBuffer buf = ByteBuffer.allocate(MAX_RECORD + 64 * 1024);
+        buf.limit(0);
+        long base = from;  // file offset of buf[0]
+        while(true) {
+            int need = 4;
+            if(buf.remaining() >= 4) {
+                int at = buf.position();
+                int length = buf.getInt(at);
+                if(length < MIN_LENGTH || length > MAX_RECORD - 4)
+                    return base + at;  // the footer's -1, or garbage
+                need = 4 + length;
+                if(buf.remaining() >= need) {
+                    int text = intact(buf, at, length) ? fields(buf, at, at + need, baseSeq, baseTime, fields) : -1;
+                    if(text < 0)
+                        return base + at;
+                    ByteBuffer payload = buf.duplicate();
+                    payload.limit(at + need).position(text);
+                    buf.position(at + need);
+                    if(!visitor.record(base + at, fields[0], fields[1], (int) fields[2], payload.slice()))
+                        return base + buf.position();
+                    continue;
+                }
+            }
+            base += buf.position();
+            buf.compact();
+            long pos = base + buf.position();
+            while(buf.hasRemaining() && pos < to) {
+                buf.limit((int) Math.min(buf.capacity(), buf.position() + (to - pos)));
+                int n = ch.read(buf, pos);
+                buf.limit(buf.capacity());
+                if(n <= 0)
+                    break;
+                pos += n;
+            }
+            buf.flip();
+            if(buf.remaining() < need)
+                return base + buf.position();  // end of the segment, or a record cut short
+        }
+    }
+
+    // the same as scan() over bytes already in memory, a mapped segment: payloads are views
+    // of buf, not copies. Returns the offset after the last record visited.
+    static int scan(ByteBuffer buf, int from, int to, long baseSeq, long baseTime, Visitor visitor) {
+        long[] fields = new long[3];
+        int at = from;
+        while(to - at >= 4) {
+            int length = buf.getInt(at);
+            if(length < MIN_LENGTH || length > MAX_RECORD - 4 || length > to - at - 4 || !intact(buf, at, length))
+                break;
+            int next = at + 4 + length;
+            int text = fields(buf, at, next, baseSeq, baseTime, fields);
+            if(text < 0)
+                break;
+            ByteBuffer payload = buf.duplicate();
+            payload.limit(next).position(text);
+            if(!visitor.record(at, fields[0], fields[1], (int) fields[2], payload.slice()))
+                return next;
+            at = next;
+        }
+        return at;
+    }
+
+    // the shared read-only mapping of this segment, null while it is still being written
+    // or once it has been compressed.
+    synchronized MappedSegment mapped() throws IOException {
+        if(!sealed || compressed != null)
+            return null;
+        if(mapped == null)
+            mapped = MappedSegment.map(this);
+        return mapped;
+    }
+
+    CompressedSegment compressed() {
+        return compressed;
+    }
+
+    // rewrites a sealed segment as a .logz and drops the raw file and its index. Readers
+    // that already hold the raw file or its mapping finish with it, later ones inflate.
+    void compress(int blockBytes) throws IOException {
+        File out = CompressedSegment.fileFor(file);
+        CompressedSegment.write(this, out, blockBytes);
+        CompressedSegment opened = CompressedSegment.open(out);
+        synchronized(this) {
+            compressed = opened;
+            mapped = null;
+        }
+        Files.deleteIfExists(SegmentIndex.fileFor(file).toPath());
+        Files.deleteIfExists(file.toPath());
+    }
+
+    // the file the records are in now.
+    File current() {
+        CompressedSegment c = compressed;
+        return c != null ? c.file : file;
+    }
+
+    static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while(buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if(n < 0)
+                break;
+            pos += n;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Size and random-read latency of the raw segments in a log directory against the same
+// records deflated at a few block sizes. Reads are one record by seq each, picked at
+// random: raw through the mapping and through a channel plus the sparse index, compressed
+// by inflating the one block that holds it. Run it on a log kept with -Dchat.blockBytes=0,
+// or on one whose newest segment is still raw; nothing here is written to the log itself.
+// usage: SegmentBench <segments dir> [reads]
+class SegmentBench {
+    private static final int[] BLOCK_BYTES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.out.println("usage: SegmentBench <segments dir> [reads]");
+            return;
+        }
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        File dir = new File(args[0]);
+        String[] names = dir.list();
+        Arrays.sort(names);
+        List<Segment> segments = new ArrayList<>();
+        long rawBytes = 0;
+        for(String name : names) {
+            if(Segment.isSegmentFile(name)) {
+                Segment segment = Segment.open(new File(dir, name));
+                if(segment.records > 0 && segment.end <= Integer.MAX_VALUE) {
+                    segments.add(segment);
+                    rawBytes += segment.end;
+                }
+            }
+        }
+        if(segments.isEmpty()) {
+            System.out.println("Opps! No raw segments in " + dir);
+            return;
+        }
+        long[] seqs = new long[reads];
+        Random random = new Random(42);
+        for(int i = 0; i < reads; i++) {
+            Segment segment = segments.get(random.nextInt(segments.size()));
+            seqs[i] = segment.baseSeq + random.nextInt(segment.records);
+        }
+
+        MappedSegment[] mapped = new MappedSegment[segments.size()];
+        for(int i = 0; i < mapped.length; i++)
+            mapped[i] = MappedSegment.map(segments.get(i));
+        System.out.println(segments.size() + " segments, " + rawBytes + " bytes raw, " + reads + " random reads");
+        System.out.println("format        bytes       ratio  write MB/s  read us/record");
+        for(int round = 0; round < 2; round++) {  // the first round only warms the JIT up
+            long start = System.nanoTime();
+            for(long seq : seqs)
+                readMapped(segments, mapped, seq);
+            long mappedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(long seq : seqs)
+                readChannel(segments, seq);
+            long channelNanos = System.nanoTime() - start;
+            if(round == 1) {
+                report("raw mapped", rawBytes, rawBytes, 0, mappedNanos / (double) reads);
+                report("raw channel", rawBytes, rawBytes, 0, channelNanos / (double) reads);
+            }
+        }
+
+        File tmp = new File(System.getProperty("java.io.tmpdir"), "segmentbench-" + System.nanoTime());
+        if(!tmp.mkdirs())
+            throw new IOException("could not create " + tmp);
+        try {
+            for(int blockBytes : BLOCK_BYTES) {
+                CompressedSegment[] compressed = new CompressedSegment[segments.size()];
+                long bytes = 0;
+                long start = System.nanoTime();
+                for(int i = 0; i < compressed.length; i++) {
+                    File out = new File(tmp, segments.get(i).file.getName() + "z");
+                    bytes += CompressedSegment.write(segments.get(i), out, blockBytes);
+                    compressed[i] = CompressedSegment.open(out);
+                }
+                long writeNanos = System.nanoTime() - start;
+                long readNanos = 0;
+                for(int round = 0; round < 2; round++) {
+                    start = System.nanoTime();
+                    for(long seq : seqs)
+                        readCompressed(segments, compressed, seq);
+                    readNanos = System.nanoTime() - start;
+                }
+                report("deflate " + blockBytes / 1024 + "K", rawBytes, bytes, rawBytes * 1000.0 / writeNanos,
+                        readNanos / (double) reads);
+                for(int i = 0; i < compressed.length; i++) {
+                    compressed[i].close();
+                    compressed[i].file.delete();
+                }
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    private static void report(String format, long rawBytes, long bytes, double writeMBs, double readNanos) {
+        System.out.printf("%-12s %10d  %6.2fx  %10s  %10.1f%n", format, bytes, rawBytes / (double) bytes,
+                writeMBs == 0 ? "-" : String.format("%.1f", writeMBs), readNanos / 1000);
+    }
+
+    private static int segmentFor(List<Segment> segments, long seq) {
+        int found = 0;
+        for(int i = 0; i < segments.size() && segments.get(i).baseSeq <= seq; i++)
+            found = i;
+        return found;
+    }
+
+    private static final class First implements Segment.Visitor {
+        private final long seq;
+        int length = -1;
+
+        First(long seq) {
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+            if(seq < this.seq)
+                return true;
+            length = payload.remaining();
+            return false;
+        }
+    }
+
+    private static void readMapped(List<Segment> segments, MappedSegment[] mapped, long seq) {
+        First first = new First(seq);
+        mapped[segmentFor(segments, seq)].scan(SegmentIndex.SEQ, seq, first);
+        check(first, seq);
+    }
+
+    private static void readChannel(List<Segment> segments, long seq) throws IOException {
+        Segment segment = segments.get(segmentFor(segments, seq));
+        First first = new First(seq);
+        try(FileChannel ch = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            segment.scan(ch, SegmentIndex.floor(segment.file, SegmentIndex.SEQ, seq), segment.end, first);
+        }
+        check(first, seq);
+    }
+
+    private static void readCompressed(List<Segment> segments, CompressedSegment[] compressed, long seq) throws IOException {
+        First first = new First(seq);
+        compressed[segmentFor(segments, seq)].scan(SegmentIndex.SEQ, seq, first);
+        check(first, seq);
+    }
+
+    private static void check(First first, long seq) {
+        if(first.length < 0)
+            throw new IllegalStateException("record " + seq + " not found");
+    }
+}
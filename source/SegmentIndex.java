@@ -0,0 +1,140 @@
+package source;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Sparse index of one Segment, kept next to it as <base>.idx: an entry of long seq,
+// long time, long offset for the first record of every INTERVAL bytes, appended while
+// the segment grows. Looking up a seq or a time is a binary search over the entries,
+// O(log n) reads, and then a scan of at most INTERVAL bytes of the segment.
+final class SegmentIndex implements Closeable {
+    static final int ENTRY = 24;
+    static final int INTERVAL = 4 * 1024;
+    static final int SEQ = 0;
+    static final int TIME = 1;
+
+    private final FileChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocate(ENTRY * 128);
+    private long lastOffset;  // record offset of the newest entry
+    private long size;        // bytes written to channel
+
+    private SegmentIndex(FileChannel channel, long size, long lastOffset) {
+        this.channel = channel;
+        this.size = size;
+        this.lastOffset = lastOffset;
+    }
+
+    static File fileFor(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - 4) + ".idx");
+    }
+
+    // the index of a segment that is being appended to, repaired to match it: entries for
+    // records a torn tail took with it are dropped, records not indexed yet are added.
+    static SegmentIndex openForAppend(Segment segment) throws IOException {
+        FileChannel ch = FileChannel.open(fileFor(segment.file).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long entries = ch.size() / ENTRY;
+        while(entries > 0 && entry(ch, entries - 1).getLong(16) >= segment.end)
+            entries--;
+        ch.truncate(entries * ENTRY);
+        long from = entries > 0 ? entry(ch, entries - 1).getLong(16) : Segment.HEADER;
+        SegmentIndex index = new SegmentIndex(ch, entries * ENTRY, entries > 0 ? from : Long.MIN_VALUE);
+        final List<long[]> missing = new ArrayList<>();
+        final long[] last = { index.lastOffset };
+        try(FileChannel data = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            segment.scan(data, from, segment.end, new Segment.Visitor() {
+                @Override
+                public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                    if(last[0] == Long.MIN_VALUE || offset - last[0] >= INTERVAL) {
+                        missing.add(new long[] { seq, time, offset });
+                        last[0] = offset;
+                    }
+                    return true;
+                }
+            });
+        }
+        for(long[] entry : missing)
+            index.added(entry[0], entry[1], entry[2]);
+        index.flush();
+        return index;
+    }
+
+    // called for every record appended, in order; only some of them get an entry.
+    void added(long seq, long time, long offset) throws IOException {
+        if(lastOffset != Long.MIN_VALUE && offset - lastOffset < INTERVAL)
+            return;
+        if(!pending.hasRemaining())
+            flush();
+        pending.putLong(seq).putLong(time).putLong(offset);
+        lastOffset = offset;
+    }
+
+    void flush() throws IOException {
+        pending.flip();
+        while(pending.hasRemaining())
+            size += channel.write(pending, size);
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+
+    // offset of the last indexed record whose seq (SEQ) or time (TIME) is at most key, the
+    // first record's offset if there is none. Scanning on from there finds key.
+    static long floor(File segment, int field, long key) throws IOException {
+        try(FileChannel ch = FileChannel.open(fileFor(segment).toPath(), StandardOpenOption.READ)) {
+            long lo = 0;
+            long hi = ch.size() / ENTRY - 1;
+            long found = Segment.HEADER;
+            while(lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                ByteBuffer entry = entry(ch, mid);
+                if(entry.getLong(field * 8) <= key) {
+                    found = entry.getLong(16);
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+        catch(NoSuchFileException exc) {
+            return Segment.HEADER;  // not indexed (yet), scan the whole segment.
+        }
+    }
+
+    // { seq, time, offset } of the last entry pointing below size, null if there is none:
+    // where recovering an unsealed segment can start instead of at its first record.
+    static long[] last(File segment, long size) throws IOException {
+        try(FileChannel ch = FileChannel.open(fileFor(segment).toPath(), StandardOpenOption.READ)) {
+            for(long i = ch.size() / ENTRY - 1; i >= 0; i--) {
+                ByteBuffer entry = entry(ch, i);
+                if(entry.getLong(16) >= Segment.HEADER && entry.getLong(16) < size)
+                    return new long[] { entry.getLong(0), entry.getLong(8), entry.getLong(16) };
+            }
+            return null;
+        }
+        catch(NoSuchFileException exc) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer entry(FileChannel ch, long i) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        Segment.readFully(ch, entry, i * ENTRY);
+        return entry;
+    }
+}
@@ -0,0 +1,478 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// The chat log as a directory of Segments instead of one file that grows forever. Records
+// go to the newest segment until it reaches segmentBytes or segmentMillis, then it is
+// sealed and a new one started. Sealed segments beyond retainSegments or older than
+// retainMillis are deleted, or moved to an archive directory. Opening the log only scans
+// the newest segment, so opening, tailing and pruning cost one segment however long the
+// history is. Each segment has a sparse SegmentIndex, so finding a record by seq or by
+// time is a binary search rather than a scan. Sealed segments are rewritten in deflated
+// blocks (CompressedSegment) by a background thread unless blockBytes is 0.
+//
+// Written by one thread only (it is AsyncLogWriter's sink); readers on other threads see
+// whatever has been flushed to the files.
+public class SegmentedLog implements LogSink {
+    // how far out of time order records can be: times are taken by the appending threads,
+    // seqs handed out in the order they get to the ring.
+    private static final long DISORDER_MILLIS = 1000;
+    private final File dir;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final int retainSegments;
+    private final long retainMillis;
+    private final File archive;
+    private final int blockBytes;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();  // oldest first
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(Segment.MAX_RECORD);  // room for the biggest record
+    private Segment active;
+    private FileChannel channel;
+    private SegmentIndex index;  // of the active segment
+    private volatile long nextSeq;
+    private final boolean readOnly;
+
+    // retainSegments and retainMillis of 0 keep everything, archive null deletes. Segments
+    // are left raw.
+    public SegmentedLog(File dir, long segmentBytes, long segmentMillis, int retainSegments, long retainMillis,
+            File archive) throws IOException {
+        this(dir, segmentBytes, segmentMillis, retainSegments, retainMillis, archive, 0, false);
+    }
+
+    // blockBytes of 0 leaves sealed segments raw.
+    public SegmentedLog(File dir, long segmentBytes, long segmentMillis, int retainSegments, long retainMillis,
+            File archive, int blockBytes) throws IOException {
+        this(dir, segmentBytes, segmentMillis, retainSegments, retainMillis, archive, blockBytes, false);
+    }
+
+    private SegmentedLog(File dir, long segmentBytes, long segmentMillis, int retainSegments, long retainMillis,
+            File archive, int blockBytes, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        this.dir = dir;
+        this.segmentBytes = Math.max(segmentBytes, Segment.HEADER + Segment.MAX_RECORD + Segment.FOOTER);
+        this.segmentMillis = segmentMillis;
+        this.retainSegments = retainSegments;
+        this.retainMillis = retainMillis;
+        this.archive = archive;
+        this.blockBytes = blockBytes;
+        if(!dir.isDirectory() && (readOnly || !dir.mkdirs()))
+            throw new IOException("could not create " + dir);
+        open();
+    }
+
+    // -Dchat.segmentBytes=67108864 -Dchat.segmentMillis=86400000 (roll a segment at 64M or a day)
+    // -Dchat.retainSegments=0 -Dchat.retainMillis=0 (0 keeps everything)
+    // -Dchat.archive=dir (move expired segments there instead of deleting them)
+    // -Dchat.blockBytes=16384 (deflate sealed segments in blocks of 16K, 0 keeps them raw)
+    public static SegmentedLog fromSystemProperties(File dir) throws IOException {
+        String archive = System.getProperty("chat.archive");
+        return new SegmentedLog(dir, Long.getLong("chat.segmentBytes", 64L * 1024 * 1024),
+                Long.getLong("chat.segmentMillis", 24L * 60 * 60 * 1000), Integer.getInteger("chat.retainSegments", 0),
+                Long.getLong("chat.retainMillis", 0), archive == null ? null : new File(archive),
+                Integer.getInteger("chat.blockBytes", 16 * 1024));
+    }
+
+    // a log or an archive directory opened only to be read, possibly while its owner is
+    // still writing to it: nothing is repaired, rolled or pruned.
+    public static SegmentedLog readOnly(File dir) throws IOException {
+        return new SegmentedLog(dir, Long.MAX_VALUE, Long.MAX_VALUE, 0, 0, null, 0, true);
+    }
+
+    private void open() throws IOException {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        List<Segment> uncompressed = new ArrayList<>();
+        for(String name : names) {
+            File file = new File(dir, name);
+            if(Segment.isSegmentFile(name)) {
+                if(CompressedSegment.fileFor(file).exists()) {
+                    // compressed just before a crash, only the raw files were left to remove.
+                    if(!readOnly) {
+                        Files.deleteIfExists(SegmentIndex.fileFor(file).toPath());
+                        Files.deleteIfExists(file.toPath());
+                    }
+                    continue;
+                }
+                Segment segment = Segment.open(file);
+                segments.add(segment);
+                if(segment.sealed)
+                    uncompressed.add(segment);
+            }
+            else if(CompressedSegment.isCompressedFile(name)) {
+                segments.add(Segment.open(CompressedSegment.open(file)));
+            }
+            else if(name.endsWith(".logz.tmp") && !readOnly) {
+                Files.deleteIfExists(file.toPath());  // a compression cut short, done again below
+            }
+        }
+        if(!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            nextSeq = last.lastSeq + 1;
+            if(readOnly)
+                return;
+            if(!last.sealed) {
+                // carry on appending, past whatever a crash left half written.
+                channel = FileChannel.open(last.file.toPath(), StandardOpenOption.WRITE);
+                channel.truncate(last.end);
+                channel.position(last.end);
+                active = last;
+                index = SegmentIndex.openForAppend(last);
+            }
+        }
+        if(readOnly)
+            return;
+        if(blockBytes > 0 && !uncompressed.isEmpty())
+            compressLater(uncompressed);
+        retain(System.currentTimeMillis());
+    }
+
+    // the sequence number the next record should get, one past the last one logged.
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public void write(long seq, long time, int sender, String text) throws IOException {
+        if(readOnly)
+            throw new IOException("log opened read-only: " + dir);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > Frame.MAX_PAYLOAD)
+            bytes = truncate(bytes);  // one long pasted line must not stop the log
+        int size = Segment.RECORD_HEADER + bytes.length;  // at most, the header's varints are usually shorter
+        if(active != null && active.records > 0
+                && (active.end + size + Segment.FOOTER > segmentBytes || time - active.baseTime >= segmentMillis))
+            roll(time);
+        if(active == null)
+            start(seq, time);
+        if(size > buffer.remaining())
+            flush();
+        index.added(seq, time, active.end);
+        active.end += Segment.encode(buffer, active.baseSeq, active.baseTime, seq, time, sender, bytes);
+        active.records++;
+        active.lastSeq = seq;
+        active.lastTime = time;
+        nextSeq = seq + 1;
+    }
+
+    // the first Frame.MAX_PAYLOAD bytes of text, cut at a character and marked as cut.
+    static byte[] truncate(byte[] text) {
+        byte[] marker = (" [truncated, " + text.length + " bytes]").getBytes(StandardCharsets.UTF_8);
+        int keep = Frame.MAX_PAYLOAD - marker.length;
+        while(keep > 0 && (text[keep] & 0xC0) == 0x80)  // not in the middle of a character
+            keep--;
+        byte[] cut = Arrays.copyOf(text, keep + marker.length);
+        System.arraycopy(marker, 0, cut, keep, marker.length);
+        return cut;
+    }
+
+    private void start(long seq, long time) throws IOException {
+        File file = new File(dir, Segment.fileName(seq));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        active = Segment.create(dir, seq, time, channel);
+        channel.position(Segment.HEADER);
+        index = SegmentIndex.openForAppend(active);
+        segments.add(active);
+    }
+
+    private void roll(long now) throws IOException {
+        flush();
+        active.seal(channel);
+        channel.close();
+        channel = null;
+        index.close();
+        index = null;
+        if(blockBytes > 0)
+            compressLater(Collections.singletonList(active));
+        active = null;
+        retain(now);
+    }
+
+    // deflating a segment takes a while, so it happens on its own thread and the writer
+    // carries on. One cut short by the process exiting is done again on the next open.
+    private void compressLater(final List<Segment> sealed) {
+        Thread compressor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(Segment segment : sealed) {
+                    try {
+                        segment.compress(blockBytes);
+                        if(!segments.contains(segment)) {
+                            // retention got to it while it was being compressed.
+                            segment.compressed().close();
+                            expire(segment.current());
+                        }
+                    }
+                    catch(IOException exc) {
+                        System.out.println("Opps! Could Not Compress Segment: " + exc);
+                    }
+                }
+            }
+        }, "log-compressor");
+        compressor.setDaemon(true);
+        compressor.start();
+    }
+
+    // drops sealed segments beyond retainSegments or older than retainMillis, oldest first.
+    private void retain(long now) throws IOException {
+        List<Segment> expired = new ArrayList<>();
+        int sealed = 0;
+        for(Segment segment : segments)
+            if(segment.sealed)
+                sealed++;
+        for(Segment segment : segments) {
+            if(!segment.sealed)
+                break;
+            boolean tooMany = retainSegments > 0 && sealed - expired.size() > retainSegments;
+            boolean tooOld = retainMillis > 0 && now - segment.lastTime > retainMillis;
+            if(!tooMany && !tooOld)
+                break;
+            expired.add(segment);
+        }
+        for(Segment segment : expired) {
+            segments.remove(segment);
+            try {
+                CompressedSegment compressed = segment.compressed();
+                if(compressed != null) {
+                    compressed.close();
+                    expire(compressed.file);
+                }
+                expire(segment.file);
+                expire(SegmentIndex.fileFor(segment.file));
+            }
+            catch(IOException exc) {
+                // e.g. still mapped by a reader on Windows, logging carries on regardless.
+                System.out.println("Opps! Could Not Remove Old Segment: " + exc);
+            }
+        }
+    }
+
+    private void expire(File file) throws IOException {
+        if(archive == null) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        if(!archive.isDirectory() && !archive.mkdirs())
+            throw new IOException("could not create " + archive);
+        if(file.exists())
+            Files.move(file.toPath(), new File(archive, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // records first, then the index entries pointing at them.
+    @Override
+    public void flush() throws IOException {
+        if(channel == null)
+            return;
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        index.flush();
+    }
+
+    // the active segment only: sealing forced the others, and an index is repaired from
+    // its segment on open.
+    @Override
+    public void sync() throws IOException {
+        if(channel != null)
+            channel.force(false);
+    }
+
+    // the last n records, oldest first.
+    public List<LogRecord> tail(int n) throws IOException {
+        return before(nextSeq, n);
+    }
+
+    // the n records logged just before seq, oldest first.
+    public List<LogRecord> before(long seq, int n) throws IOException {
+        List<LogRecord> records = read(Math.max(0, seq - n), n);
+        int end = 0;
+        while(end < records.size() && records.get(end).getSeq() < seq)
+            end++;
+        return new ArrayList<>(records.subList(0, end));
+    }
+
+    // up to max records from seq on, in order.
+    public List<LogRecord> read(long fromSeq, int max) throws IOException {
+        Object[] snapshot = segments.toArray();
+        int first = 0;
+        int lo = 0;
+        int hi = snapshot.length - 1;
+        while(lo <= hi) {  // the last segment starting at or before fromSeq
+            int mid = (lo + hi) >>> 1;
+            if(((Segment) snapshot[mid]).baseSeq <= fromSeq) {
+                first = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        List<LogRecord> records = new ArrayList<>();
+        for(int i = first; i < snapshot.length && records.size() < max; i++)
+            read((Segment) snapshot[i], SegmentIndex.SEQ, fromSeq, max - records.size(), records);
+        return records;
+    }
+
+    // up to max records logged at or after time (System.currentTimeMillis()), in order.
+    // Looks as far back as records can be out of order, like forEachBetween.
+    public List<LogRecord> since(long time, int max) throws IOException {
+        Object[] snapshot = segments.toArray();
+        long scanFrom = time - DISORDER_MILLIS;
+        int first = 0;
+        int lo = 0;
+        int hi = snapshot.length - 1;
+        while(lo <= hi) {  // the last segment started at or before scanFrom
+            int mid = (lo + hi) >>> 1;
+            if(((Segment) snapshot[mid]).baseTime <= scanFrom) {
+                first = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        List<LogRecord> records = new ArrayList<>();
+        for(int i = first; i < snapshot.length && records.size() < max; i++) {
+            Segment segment = (Segment) snapshot[i];
+            if(segment.lastTime < scanFrom && segment.sealed)
+                continue;
+            read(segment, SegmentIndex.TIME, scanFrom, time, max - records.size(), records);
+        }
+        return records;
+    }
+
+    // records of one segment whose seq or time (field) is at least from.
+    private static void read(Segment segment, int field, long from, int max, List<LogRecord> records)
+            throws IOException {
+        read(segment, field, from, from, max, records);
+    }
+
+    // the same, entering the segment's index at scanFrom.
+    private static void read(Segment segment, final int field, long scanFrom, final long from, final int max,
+            final List<LogRecord> records) throws IOException {
+        final int limit = records.size() + max;
+        scan(segment, field, scanFrom, new Segment.Visitor() {
+            @Override
+            public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                if((field == SegmentIndex.SEQ ? seq : time) >= from)
+                    records.add(new LogRecord(seq, time, sender, StandardCharsets.UTF_8.decode(payload).toString()));
+                return records.size() < limit;
+            }
+        });
+    }
+
+    // every record from seq on, in order, without collecting them: for exports and
+    // anything else that walks a lot of history. Stops when visitor returns false.
+    void forEach(long fromSeq, final Segment.Visitor visitor) throws IOException {
+        final boolean[] stopped = { false };
+        for(Object o : segments.toArray()) {
+            Segment segment = (Segment) o;
+            if(segment.lastSeq < fromSeq && segment.sealed)
+                continue;
+            scan(segment, SegmentIndex.SEQ, fromSeq, new Segment.Visitor() {
+                @Override
+                public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                    if(seq < fromSeq)
+                        return true;
+                    stopped[0] = !visitor.record(offset, seq, time, sender, payload);
+                    return !stopped[0];
+                }
+            });
+            if(stopped[0])
+                return;
+        }
+    }
+
+    // every record logged from fromTime to toTime (System.currentTimeMillis(), both
+    // included), in order, without collecting them. Segments wholly outside the range are
+    // skipped, the first one is entered through its index, and the scan stops once times
+    // are past toTime by more than records can be out of order.
+    void forEachBetween(final long fromTime, final long toTime, final Segment.Visitor visitor) throws IOException {
+        final boolean[] stopped = { false };
+        for(Object o : segments.toArray()) {
+            Segment segment = (Segment) o;
+            if(segment.baseTime > toTime + DISORDER_MILLIS)
+                return;
+            if(segment.lastTime < fromTime - DISORDER_MILLIS && segment.sealed)
+                continue;
+            scan(segment, SegmentIndex.TIME, fromTime - DISORDER_MILLIS, new Segment.Visitor() {
+                @Override
+                public boolean record(long offset, long seq, long time, int sender, ByteBuffer payload) {
+                    if(time > toTime + DISORDER_MILLIS)
+                        stopped[0] = true;
+                    else if(time >= fromTime && time <= toTime)
+                        stopped[0] = !visitor.record(offset, seq, time, sender, payload);
+                    return !stopped[0];
+                }
+            });
+            if(stopped[0])
+                return;
+        }
+    }
+
+    // compressed segments by inflating the block holding from and those after it, sealed
+    // ones through their shared mapping, the one still being written through a channel,
+    // starting at the index entry just before from.
+    private static void scan(Segment segment, int field, long from, Segment.Visitor visitor) throws IOException {
+        try {
+            CompressedSegment compressed = segment.compressed();
+            MappedSegment mapped = compressed == null ? segment.mapped() : null;
+            if(mapped == null && segment.sealed)
+                compressed = segment.compressed();  // compressed in between, the raw file may be gone
+            if(compressed != null) {
+                compressed.scan(field, from, visitor);
+                return;
+            }
+            if(mapped != null) {
+                mapped.scan(field, from, visitor);
+                return;
+            }
+            try(FileChannel ch = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                long start = SegmentIndex.floor(segment.file, field, field == SegmentIndex.TIME ? from - 1 : from);
+                segment.scan(ch, start, ch.size(), visitor);
+            }
+        }
+        catch(NoSuchFileException | ClosedChannelException exc) {
+            // pruned by retention while we were looking.
+        }
+    }
+
+    // sealed segments and the one being written, oldest first.
+    public List<File> getSegments() {
+        List<File> files = new ArrayList<>();
+        for(Segment segment : segments)
+            files.add(segment.current());
+        return files;
+    }
+
+    // leaves the newest segment unsealed, the next open carries on appending to it.
+    @Override
+    public void close() throws IOException {
+        if(channel == null)
+            return;
+        flush();
+        channel.force(false);
+        channel.close();
+        channel = null;
+        index.close();
+        index = null;
+    }
+}
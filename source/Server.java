@@ -1,84 +1,247 @@
 package source;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Server {
-    public static void main(String[] args) throws FileNotFoundException{
+    public static void main(String[] args) throws IOException{
+        // Server [nio|platform|virtual] [port], without a mode it is the original one-to-one chat.
+        if(args.length > 0) {
+            serveMany(args[0], args.length > 1 ? Integer.parseInt(args[1]) : 0007);
+            return;
+        }
         final ServerSocket serverSocket;
         final Socket clientSocket;
-        final BufferedReader in;
-        final PrintWriter out;
+        final MessageReader in;
+        final MessageWriter out;
         final Scanner sc = new Scanner(System.in);
         final String pre = ">> ";
 
         // File log_file = new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt");
         // final PrintWriter log_writer = new PrintWriter(log_file);
-        PrintWriter log_writer = new PrintWriter(new FileOutputStream(new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt"), true));
+        final ChatLog log_writer = LogService.open(new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt")); // one writer per machine, see LogService
+        final AtomicBoolean closing = new AtomicBoolean();
 
         try {
             serverSocket = new ServerSocket(0007);
             System.out.print("\n" + pre + "Waiting for request...\n" + pre);
             clientSocket = serverSocket.accept();
+            serverSocket.close(); // one client only, stop accepting
             System.out.println("\n" + pre + "[Connection Stablished Successfully]\n" + pre);
-            out = new PrintWriter(clientSocket.getOutputStream());
-            in = new BufferedReader (new InputStreamReader(clientSocket.getInputStream()));
+            out = new MessageWriter(clientSocket.getOutputStream(), false); // answers in frames once the client asks for them
+            in = new MessageReader(clientSocket.getInputStream());
+
+            // whoever sees "exit" first: log to disk, then close the socket, which also ends
+            // the other thread, so the program ends without System.exit.
+            final Runnable disconnect = new Runnable() {
+                @Override
+                public void run() {
+                    if(!closing.compareAndSet(false, true))
+                        return;
+                    closeLog(log_writer);
+                    try {
+                        clientSocket.close();
+                    }
+                    catch(IOException exc) {
+                        // already gone.
+                    }
+                    System.out.println(pre);
+                    System.out.println(pre + "Successfully Disconnected!");
+                }
+            };
 
             Thread sender= new Thread(new Runnable() {
                 String msg = ""; // variable that will contains the data writter by the user
                 @Override        // annotation to override the run method
                 public void run() {
-                    while(!msg.equalsIgnoreCase("exit")){
+                    while(!msg.equalsIgnoreCase("exit") && !closing.get()){
                         System.out.print(pre);
                         msg = sc.nextLine(); // reads data from user's keybord
 
                         if(!msg.equalsIgnoreCase("exit")){
-                            log_writer.append("[Server]:\t" + msg + "\n");
-                            log_writer.flush();
-                            out.println(msg);    // write data stored in msg in the clientSocket
-                            out.flush();         // forces the sending of the data
+                            log(log_writer, LogSink.SERVER, msg);
+                            try {
+                                out.write(msg);  // write data stored in msg in the clientSocket and send it
+                            }
+                            catch(IOException exc) {
+                                System.out.println("Opps! Could Not Send The Message: " + exc);
+                            }
                         }
                         if(!msg.equalsIgnoreCase("exit"))
                             System.out.println(pre + "[Message Sent]");
                     }
-                    log_writer.close();
-                    System.out.println(pre);
-                    System.out.println(pre + "Successfully Disconnected!");
-                    System.exit(1);
+                    try {
+                        out.writeExit();  // the client hears it before the socket closes.
+                    }
+                    catch(IOException exc) {
+                        // client already gone.
+                    }
+                    disconnect.run();
                 }
             });
+            sender.setDaemon(true); // may be waiting on the keyboard when the client leaves
             sender.start();
 
             Thread receive= new Thread(new Runnable() {
-                String msg = "";
+                ChatMessage msg;
                 @Override
                 public void run() {
                     try {
-                        msg = in.readLine();
-                        while(!msg.equalsIgnoreCase("exit")){
-                            System.out.println("Client: " + msg);
+                        msg = in.read(); // null once the client sends exit
+                        while(msg != null){
+                            if(in.isBinary())
+                                out.setBinary();
+                            System.out.println("Client: " + msg.text());
                             System.out.print(pre);
-                            msg = in.readLine();
+                            msg = in.read();
                         }
                         System.out.println("\n" + pre + "Client Disconnected!");
-                        System.exit(1);
                     }
                     catch(IOException exc) {
-                        System.out.println("Opps! Not Found data for Socket: " + exc);
+                        if(!closing.get())
+                            System.out.println("Opps! Not Found data for Socket: " + exc);
                     }
+                    disconnect.run();
                 }
             });
             receive.start();
         }
         catch(Exception exc) {
             System.out.println("Opps! Could Not Able To Stablish The Connection: " + exc);
+            closeLog(log_writer);
         }   
     }
-}
\ No newline at end of file
+
+    // Multi-client mode: clients chat in rooms (see ChatRouter), whatever is typed here goes
+    // to every connected client, always through their own bounded queues. With "nio"
+    // all clients share a few selector threads (see NioServer), with "platform" or "virtual"
+    // each client gets its own reader and writer thread of that kind (see BlockingServer).
+    private static void serveMany(String mode, int port) throws IOException {
+        final Scanner sc = new Scanner(System.in);
+        final String pre = ">> ";
+        final ChatRouter router = new ChatRouter(new RoomRegistry());
+        final Conversation clients = router.getEveryone();
+        File log_file = new File("F:/HNBGU Academics/VI Semester/Minor Project/Source Code/chat_logs/log.txt");
+        final ChatLog log_writer = LogService.open(log_file);
+        ChatHistory history = null;
+        try {
+            history = ChatHistory.open(log_file, log_writer, 50, 32 * 1024); // last 50 lines go to every new client
+            router.setHistory(history);
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Open The Chat History: " + exc);
+        }
+
+        ChatHandler handler = new ChatHandler() {
+            @Override
+            public void onOpen(ChatConnection conn) {
+                router.onOpen(conn);
+                System.out.print("\n" + pre + "[" + conn.getName() + " Connected]\n" + pre);
+            }
+
+            @Override
+            public void onMessage(ChatConnection conn, ChatMessage msg) {
+                if(msg.getType() == Frame.CHAT) {
+                    System.out.print(conn.getName() + ": " + msg.text() + "\n" + pre);
+                    log(log_writer, conn.getId(), msg.text());  // Client-n in the log, see LogSink
+                }
+                router.onMessage(conn, msg);
+            }
+
+            @Override
+            public void onClose(ChatConnection conn) {
+                router.onClose(conn);
+                System.out.print("\n" + pre + "[" + conn.getName() + " Disconnected]\n" + pre);
+            }
+        };
+        final ChatServer server = createServer(mode, port, handler);
+        if(server == null) {
+            closeLog(log_writer);
+            return;
+        }
+        final ChatHistory replay = history;
+        // typed "exit" or a SIGTERM during a deploy: both drain before anything is closed.
+        final Runnable shutdown = new Runnable() {
+            private boolean done;
+
+            @Override
+            public synchronized void run() {
+                if(done)
+                    return;
+                done = true;
+                clients.broadcast(null, ChatMessage.EXIT);  // Client treats this as the server going away.
+                ShutdownReport report = server.shutdown(Long.getLong("chat.drainMillis", 5000));
+                closeLog(log_writer);
+                try {
+                    if(replay != null)
+                        replay.close();
+                }
+                catch(IOException exc) {
+                    // nothing left to release.
+                }
+                System.out.println(pre + "Backpressure " + server.getBackpressure());
+                System.out.println(pre + report);
+                System.out.println(pre + "Successfully Disconnected!");
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(shutdown, "chat-shutdown"));
+        try {
+            server.start();
+            System.out.print("\n" + pre + "Waiting for requests on port " + server.getPort() + "...\n" + pre);
+            String msg = "";
+            while(!msg.equalsIgnoreCase("exit")) {
+                msg = sc.nextLine();
+                if(!msg.equalsIgnoreCase("exit")) {
+                    log(log_writer, LogSink.SERVER, msg);
+                    int sent = clients.broadcast(null, msg);
+                    System.out.print(pre + "[Message Sent to " + sent + "]\n" + pre);
+                }
+            }
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Able To Stablish The Connection: " + exc);
+        }
+        shutdown.run();
+    }
+
+    // a line typed or received after closeLog is reported too, not thrown at the caller.
+    static void log(ChatLog log, int sender, String msg) {
+        try {
+            log.append(sender, msg);
+        }
+        catch(IOException | IllegalStateException exc) {
+            System.out.println("Opps! Could Not Log The Message: " + exc);
+        }
+    }
+
+    // waits for the log's writer to catch up, then syncs and closes the file.
+    static void closeLog(ChatLog log) {
+        try {
+            log.close();
+        }
+        catch(IOException exc) {
+            System.out.println("Opps! Could Not Close The Log: " + exc);
+        }
+    }
+
+    static ChatServer createServer(String mode, int port, ChatHandler handler) {
+        if(mode.equalsIgnoreCase("nio"))
+            return new NioServer(port, Runtime.getRuntime().availableProcessors(), handler);
+        if(mode.equalsIgnoreCase("platform"))
+            return new BlockingServer(port, BlockingServer.platformThreads(), handler);
+        if(mode.equalsIgnoreCase("virtual")) {
+            ThreadFactory threads = BlockingServer.virtualThreads();
+            if(threads == null) {
+                System.out.println("Opps! Virtual threads need Java 21 or newer, using platform threads.");
+                threads = BlockingServer.platformThreads();
+            }
+            return new BlockingServer(port, threads, handler);
+        }
+        System.out.println("Opps! Unknown mode: " + mode + " (expected nio, platform or virtual)");
+        return null;
+    }
+}
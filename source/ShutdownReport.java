@@ -0,0 +1,54 @@
+package source;
+
+// What ChatServer.shutdown() managed to deliver, printed by Server on its way out.
+public class ShutdownReport {
+    private final int connections;
+    private final boolean drained;
+    private final int undelivered;
+    private final long undeliveredBytes;
+    private final long dropped;
+    private final long millis;
+
+    ShutdownReport(int connections, boolean drained, int undelivered, long undeliveredBytes, long dropped, long millis) {
+        this.connections = connections;
+        this.drained = drained;
+        this.undelivered = undelivered;
+        this.undeliveredBytes = undeliveredBytes;
+        this.dropped = dropped;
+        this.millis = millis;
+    }
+
+    // clients still connected when shutdown started.
+    public int getConnections() {
+        return connections;
+    }
+
+    // true if every queued message was written before the deadline.
+    public boolean isDrained() {
+        return drained;
+    }
+
+    // messages still queued when the deadline passed, and their bytes.
+    public int getUndelivered() {
+        return undelivered;
+    }
+
+    public long getUndeliveredBytes() {
+        return undeliveredBytes;
+    }
+
+    // messages backpressure dropped over the server's whole life.
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    @Override
+    public String toString() {
+        return "Shutdown " + (drained ? "drained" : "timed out") + " in " + millis + " ms: connections=" + connections
+                + " undelivered=" + undelivered + " (" + undeliveredBytes + " bytes) dropped=" + dropped;
+    }
+}
@@ -0,0 +1,47 @@
+package source;
+
+import java.io.IOException;
+
+// Hands every record to several sinks in turn, e.g. the segments and the log.txt view.
+public class TeeLogSink implements LogSink {
+    private final LogSink[] sinks;
+
+    public TeeLogSink(LogSink... sinks) {
+        this.sinks = sinks;
+    }
+
+    @Override
+    public void write(long seq, long time, int sender, String text) throws IOException {
+        for(LogSink sink : sinks)
+            sink.write(seq, time, sender, text);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for(LogSink sink : sinks)
+            sink.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for(LogSink sink : sinks)
+            sink.sync();
+    }
+
+    // closes every sink even if one fails, then reports the first failure.
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for(LogSink sink : sinks) {
+            try {
+                sink.close();
+            }
+            catch(IOException exc) {
+                if(failure == null)
+                    failure = exc;
+            }
+        }
+        if(failure != null)
+            throw failure;
+    }
+}
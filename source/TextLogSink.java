@@ -0,0 +1,57 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// chat_logs/log.txt exactly as Server and Client always wrote it, "[Server]:\tmsg" lines
+// and a blank line after each session header, but written in large sequential chunks.
+public class TextLogSink implements LogSink {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    public TextLogSink(File log) throws IOException {
+        this.channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void write(long seq, long time, int sender, String text) throws IOException {
+        String line = sender == SESSION ? text + "\n\n" : "[" + LogSink.senderName(sender) + "]:\t" + text + "\n";
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > buffer.remaining())
+            flush();
+        if(bytes.length > buffer.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+            return;
+        }
+        buffer.put(bytes);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+}
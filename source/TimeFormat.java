@@ -0,0 +1,49 @@
+package source;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+// "yyyy/MM/dd HH:mm:ss" in the local time zone, the session header format, for a time
+// on every record without a Date, Calendar or DateTimeFormatter per call: the date part
+// is formatted once a day and the time of day worked out from the zone's offset, and a
+// run of records within the same second gets the same String back. Not thread-safe,
+// each thread formatting times keeps its own.
+final class TimeFormat {
+    static final String PATTERN = "yyyy/MM/dd HH:mm:ss";
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private final TimeZone zone = TimeZone.getDefault();
+    private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd ");
+    private final char[] chars = new char[PATTERN.length()];
+    private long day = Long.MIN_VALUE;     // local days since the epoch of chars' date part
+    private long second = Long.MIN_VALUE;  // of last, in UTC
+    private String last;
+
+    // time is System.currentTimeMillis().
+    String format(long time) {
+        long utcSecond = Math.floorDiv(time, 1000);
+        if(utcSecond == second)
+            return last;
+        long local = time + zone.getOffset(time);  // this day's offset, daylight saving included
+        long localDay = Math.floorDiv(local, DAY);
+        if(localDay != day) {
+            date.format(new Date(time)).getChars(0, 11, chars, 0);
+            day = localDay;
+        }
+        int seconds = (int) (Math.floorMod(local, DAY) / 1000);
+        twoDigits(seconds / 3600, 11);
+        chars[13] = ':';
+        twoDigits(seconds / 60 % 60, 14);
+        chars[16] = ':';
+        twoDigits(seconds % 60, 17);
+        second = utcSecond;
+        last = new String(chars);
+        return last;
+    }
+
+    private void twoDigits(int value, int at) {
+        chars[at] = (char) ('0' + value / 10);
+        chars[at + 1] = (char) ('0' + value % 10);
+    }
+}
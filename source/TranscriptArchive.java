@@ -0,0 +1,203 @@
+package source;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.A;
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.Div;
+
+// The web transcript as a directory of pages of pageMessages messages each, page-000001.html
+// on, and an index.html linking to every page with the times of its first and last
+// message. A message is appended to the last page only (TranscriptWriter), the index is
+// rewritten when a page is started or filled, from the entries of finished pages rendered
+// once and kept (ClientData), so neither the work per message nor the page a browser
+// opens grows with the history. pages.txt keeps each page's count and times as lines of
+// "page messages first last", rewritten with the index; in between every batch appends
+// the last page's line, and the latest line for a page wins, so the next run carries on
+// with the right count even after Ctrl-C.
+public class TranscriptArchive implements Closeable {
+    private static final String HEAD = "<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'><meta name='viewport'content='width=device-width, initial-scale=1.0'><meta http-equiv='X-UA-Compatible' content='ie=edge'><title>";
+    private static final String END = "</body></html>";
+
+    private final File dir;
+    private final String title;
+    private final int pageMessages;
+    private final List<long[]> pages = new ArrayList<>();  // { messages, firstTime, lastTime } per page
+    private final TimeFormat format = new TimeFormat();
+    private final ClientData finished = new ClientData();  // index entries of the pages before page
+    private int rendered;  // pages in finished
+    private TranscriptWriter page;  // the last page, while it has room
+
+    public TranscriptArchive(File dir, String title, int pageMessages) throws IOException {
+        this.dir = dir;
+        this.title = title;
+        this.pageMessages = Math.max(1, pageMessages);
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("could not create " + dir);
+        File manifest = new File(dir, "pages.txt");
+        if(manifest.exists()) {
+            String text = new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8);
+            // only whole lines: one a crash cut short is dropped, the one before it stands.
+            String[] lines = text.substring(0, text.lastIndexOf('\n') + 1).split("\n");
+            try {
+                for(String line : lines) {
+                    if(line.isEmpty())
+                        continue;
+                    String[] fields = line.split("\t");
+                    int number = Integer.parseInt(fields[0]);
+                    long[] p = { Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]) };
+                    if(number == pages.size() + 1)
+                        pages.add(p);
+                    else if(number >= 1 && number <= pages.size())
+                        pages.set(number - 1, p);  // a later count of the same page
+                    else
+                        throw new NumberFormatException("page " + number);
+                }
+            }
+            catch(NumberFormatException | ArrayIndexOutOfBoundsException exc) {
+                throw new IOException("not a transcript page list: " + manifest);
+            }
+            writeManifest();  // a line per page again, and nothing half written for appends to follow
+        }
+        if(!pages.isEmpty() && pages.get(pages.size() - 1)[0] < this.pageMessages) {
+            try {
+                page = TranscriptWriter.reopen(pageFile(pages.size()), END);
+            }
+            catch(IOException exc) {
+                // gone, or cut short: the next message starts a new page.
+            }
+        }
+    }
+
+    // -Dchat.pageMessages=500
+    public static TranscriptArchive fromSystemProperties(File dir, String title) throws IOException {
+        return new TranscriptArchive(dir, title, Integer.getInteger("chat.pageMessages", 500));
+    }
+
+    // fragment is already HTML, time is System.currentTimeMillis().
+    public synchronized void append(long time, String fragment) throws IOException {
+        append(new long[] { time }, new String[] { fragment }, 1);
+    }
+
+    // the first n fragments in one write per page they go to.
+    public synchronized void append(long[] times, String[] fragments, int n) throws IOException {
+        int i = 0;
+        while(i < n) {
+            if(page == null)
+                start(times[i]);
+            long[] last = pages.get(pages.size() - 1);
+            int take = (int) Math.min(n - i, pageMessages - last[0]);
+            StringBuilder batch = new StringBuilder();
+            for(int j = i; j < i + take; j++)
+                batch.append(fragments[j]);
+            page.append(batch.toString());
+            i += take;
+            last[0] += take;
+            last[2] = times[i - 1];
+            if(last[0] >= pageMessages) {
+                page.close();
+                page = null;
+                writeIndex();
+            }
+        }
+        if(page != null && n > 0) {
+            // the open page's count, without rewriting the list of every page.
+            try(OutputStream out = new FileOutputStream(new File(dir, "pages.txt"), true)) {
+                out.write(line(pages.size() - 1).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    // pages.txt's line for page i.
+    private String line(int i) {
+        long[] p = pages.get(i);
+        return (i + 1) + "\t" + p[0] + "\t" + p[1] + "\t" + p[2] + "\n";
+    }
+
+    // the previous page gets its link to the new one now that there is something to link to.
+    private void start(long time) throws IOException {
+        int number = pages.size() + 1;
+        if(number > 1) {
+            try {
+                TranscriptWriter previous = TranscriptWriter.reopen(pageFile(number - 1), END);
+                previous.finish(new Div().appendChild(new A().setHref(pageName(number)).appendText("Next")) + END);
+            }
+            catch(IOException exc) {
+                System.out.println("Opps! Could Not Link The Previous Page: " + exc);
+            }
+        }
+        Div nav = new Div().appendChild(new A().setHref("index.html").appendText("Index"));
+        if(number > 1)
+            nav.appendText(" ").appendChild(new A().setHref(pageName(number - 1)).appendText("Previous"));
+        page = new TranscriptWriter(pageFile(number), HEAD + title + " - page " + number + "</title></head><body>" + nav, END);
+        pages.add(new long[] { 0, time, time });
+        writeIndex();
+    }
+
+    private static String pageName(int number) {
+        return String.format("page-%06d.html", number);
+    }
+
+    private File pageFile(int number) {
+        return new File(dir, pageName(number));
+    }
+
+    // index.html and pages.txt, each through a temporary file so a reader never sees half of it.
+    private void writeIndex() throws IOException {
+        int open = page != null ? 1 : 0;
+        while(rendered < pages.size() - open)  // finished pages do not change any more
+            finished.append(entry(rendered++));
+        File index = new File(dir, "index.html");
+        File tmp = new File(index.getPath() + ".tmp");
+        try(OutputStream out = new FileOutputStream(tmp)) {
+            String head = HEAD + title + "</title></head><body>" + new Div().appendText(title);
+            out.write(head.getBytes(StandardCharsets.UTF_8));
+            finished.writeTo(out);
+            String last = (open == 1 ? entry(pages.size() - 1) : "") + END;
+            out.write(last.getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeManifest();
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for(int i = 0; i < pages.size(); i++)
+            manifest.append(line(i));
+        replace(new File(dir, "pages.txt"), manifest.toString());
+    }
+
+    private String entry(int i) {
+        long[] p = pages.get(i);
+        Div entry = new Div().appendChild(new A().setHref(pageName(i + 1)).appendText("Page " + (i + 1)));
+        entry.appendText(", " + format.format(p[1]) + " - " + format.format(p[2]) + ", " + p[0] + " messages");
+        return entry.toString();
+    }
+
+    private static void replace(File file, String text) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try(OutputStream out = new FileOutputStream(tmp)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the last page stays open-ended, the next run may carry on with it.
+    @Override
+    public synchronized void close() throws IOException {
+        if(page != null) {
+            page.close();
+            page = null;
+        }
+        if(!pages.isEmpty())
+            writeIndex();
+    }
+}
@@ -0,0 +1,138 @@
+package source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.Div;
+
+// Rendering the web transcript off the send path: the sender hands over a message's time
+// and text, which is all it does, and a thread of its own turns them into gagawa Divs and
+// appends them to the TranscriptArchive. The first message after a quiet spell opens a
+// window of interval; everything sent until it closes is rendered and written together,
+// so a burst costs one write per interval instead of one per message. The same rendered
+// fragments go to the TranscriptServer, if there is one, for the browsers watching live.
+public class TranscriptRenderer implements Closeable {
+    private final TranscriptArchive archive;
+    private final TranscriptServer live;
+    private final long intervalMillis;
+    private final Thread renderer;
+    private List<Long> times = new ArrayList<>();     // waiting for the next write
+    private List<String> texts = new ArrayList<>();
+    private boolean closed;
+    private long writes;
+    private long rendered;
+
+    public TranscriptRenderer(TranscriptArchive archive, long intervalMillis) {
+        this(archive, null, intervalMillis);
+    }
+
+    // live may be null.
+    public TranscriptRenderer(TranscriptArchive archive, TranscriptServer live, long intervalMillis) {
+        this.archive = archive;
+        this.live = live;
+        this.intervalMillis = intervalMillis;
+        this.renderer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        }, "transcript-renderer");
+        renderer.setDaemon(true);  // close() writes what is left
+        renderer.start();
+    }
+
+    // -Dchat.renderMillis=250, how long a message may wait to be written to the transcript.
+    public static long intervalFromSystemProperties() {
+        return Long.getLong("chat.renderMillis", 250);
+    }
+
+    // time is System.currentTimeMillis(), text the message as typed. Once closed, e.g. a
+    // line typed just as the server left, the message is not written.
+    public synchronized void add(long time, String text) {
+        if(closed)
+            return;
+        times.add(time);
+        texts.add(text);
+        if(times.size() == 1)
+            notifyAll();
+    }
+
+    private void render() {
+        List<Long> batchTimes = new ArrayList<>();
+        List<String> batchTexts = new ArrayList<>();
+        while(true) {
+            synchronized(this) {
+                try {
+                    while(times.isEmpty() && !closed)
+                        wait();
+                    long end = System.currentTimeMillis() + intervalMillis;
+                    for(long left = intervalMillis; left > 0 && !closed; left = end - System.currentTimeMillis())
+                        wait(left);
+                }
+                catch(InterruptedException exc) {
+                    return;
+                }
+                if(times.isEmpty() && closed)
+                    return;
+                List<Long> swapTimes = times;  // the sender carries on with the empty pair
+                List<String> swapTexts = texts;
+                times = batchTimes;
+                texts = batchTexts;
+                batchTimes = swapTimes;
+                batchTexts = swapTexts;
+            }
+            int n = batchTimes.size();
+            long[] at = new long[n];
+            String[] fragments = new String[n];
+            for(int i = 0; i < n; i++) {
+                at[i] = batchTimes.get(i);
+                fragments[i] = new Div().appendText(batchTexts.get(i)).toString();
+            }
+            try {
+                archive.append(at, fragments, n);
+            }
+            catch(IOException exc) {
+                System.out.println("Opps! Could Not Write The Transcript: " + exc);
+            }
+            if(live != null)
+                live.publish(fragments, n);
+            batchTimes.clear();
+            batchTexts.clear();
+            synchronized(this) {
+                writes++;
+                rendered += n;
+            }
+        }
+    }
+
+    // writes and messages written so far.
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getRendered() {
+        return rendered;
+    }
+
+    // what is waiting is written at once, then the archive and the live transcript are closed.
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            renderer.join();
+        }
+        catch(InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        if(live != null)
+            live.close();
+        archive.close();
+    }
+}
@@ -0,0 +1,275 @@
+package source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.Div;
+
+// The web transcript live on http://127.0.0.1:port/, for any number of browsers on this
+// machine. The page is the rendered messages so far (a capped ClientData) and a script
+// that listens on /events, where every new message arrives as a server-sent event. Each
+// message is rendered once, by TranscriptRenderer, and encoded as an event once; viewers
+// are only handed the same bytes. A viewer has a queue of its own, one that falls more
+// than VIEWER_BYTES behind is dropped rather than holding up the rest, and its browser
+// reconnects with the id of the last event it saw: what it missed is replayed from the
+// RECENT events kept, if it missed more than those or more than its queue holds it is
+// told to reload the page.
+public class TranscriptServer implements Closeable {
+    private static final int RECENT = 4096;
+    private static final long VIEWER_BYTES = 1024 * 1024;
+    private static final long HEARTBEAT_MILLIS = 15_000;  // finds viewers that went away
+    private static final String HEAD = "<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'><meta name='viewport'content='width=device-width, initial-scale=1.0'><meta http-equiv='X-UA-Compatible' content='ie=edge'><title>";
+    private static final byte[] RELOAD = "event: reload\ndata: \n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final String title;
+    private final ClientData transcript;
+    private final byte[][] recent = new byte[RECENT][];  // event id - 1, modulo RECENT
+    private long events;  // published so far, also the id of the newest
+    private final CopyOnWriteArrayList<Viewer> viewers = new CopyOnWriteArrayList<>();
+
+    // port 0 picks a free one, maxBytes caps what the page shows (0 keeps everything).
+    public TranscriptServer(int port, String title, long maxBytes) throws IOException {
+        this.title = title;
+        this.transcript = new ClientData(maxBytes);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        // a viewer keeps its thread for as long as it watches.
+        ThreadFactory factory = BlockingServer.virtualThreads();
+        if(factory == null) {
+            factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "transcript-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+        threads = Executors.newCachedThreadPool(factory);
+        server.setExecutor(threads);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                page(exchange);
+            }
+        });
+        server.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                events(exchange);
+            }
+        });
+        server.start();
+    }
+
+    // -Dchat.httpPort=7080 (0 serves no live transcript, returns null)
+    // -Dchat.transcriptBytes=4194304 (the page shows the latest 4M of messages)
+    public static TranscriptServer fromSystemProperties(String title) throws IOException {
+        int port = Integer.getInteger("chat.httpPort", 7080);
+        if(port == 0)
+            return null;
+        return new TranscriptServer(port, title, Long.getLong("chat.transcriptBytes", 4L * 1024 * 1024));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // rendered messages, in order, each becoming one event.
+    public synchronized void publish(String[] fragments, int n) {
+        for(int i = 0; i < n; i++) {
+            events++;
+            byte[] event = event(events, fragments[i]);
+            transcript.append(fragments[i]);
+            recent[(int) ((events - 1) % RECENT)] = event;
+            for(Viewer viewer : viewers)
+                viewer.offer(event);
+        }
+    }
+
+    // "id: n" and the fragment as data lines, a line per line of it.
+    private static byte[] event(long id, String fragment) {
+        StringBuilder event = new StringBuilder(fragment.length() + 32).append("id: ").append(id).append('\n');
+        int start = 0;
+        while(true) {
+            int end = fragment.indexOf('\n', start);
+            event.append("data: ").append(fragment, start, end < 0 ? fragment.length() : end).append('\n');
+            if(end < 0)
+                break;
+            start = end + 1;
+        }
+        return event.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // the page as of one event id, and the script that takes it on from there.
+    private void page(HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestURI().getPath().equals("/")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        long from;
+        byte[][] chunks;
+        synchronized(this) {
+            from = events;
+            chunks = transcript.chunks();
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        try(OutputStream out = exchange.getResponseBody()) {
+            String head = HEAD + title + "</title></head><body>" + new Div().appendText(title) + "<div id='messages'>";
+            out.write(head.getBytes(StandardCharsets.UTF_8));
+            for(byte[] chunk : chunks)
+                out.write(chunk);
+            String tail = "</div><script>"
+                    + "var events = new EventSource('/events?from=" + from + "');"
+                    + "events.onmessage = function(e) {"
+                    + " document.getElementById('messages').insertAdjacentHTML('beforeend', e.data);"
+                    + " window.scrollTo(0, document.body.scrollHeight); };"
+                    + "events.addEventListener('reload', function() { events.close(); location.reload(); });"
+                    + "</script></body></html>";
+            out.write(tail.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // the events after the one the viewer saw last, then every new one as it comes.
+    private void events(HttpExchange exchange) throws IOException {
+        long seen = lastEventId(exchange);
+        Viewer viewer = new Viewer();
+        synchronized(this) {
+            if(seen < 0 || seen > events)
+                seen = events;
+            long missed = 0;
+            for(long id = events; id > seen && missed <= VIEWER_BYTES; id--)
+                missed += id > events - RECENT ? recent[(int) ((id - 1) % RECENT)].length : VIEWER_BYTES + 1;
+            if(missed > VIEWER_BYTES) {
+                // more than its queue holds, replaying would only drop it again: a fresh page.
+                viewer.offer(RELOAD);
+                seen = events;
+            }
+            for(long id = seen + 1; id <= events; id++)
+                viewer.offer(recent[(int) ((id - 1) % RECENT)]);
+            viewers.add(viewer);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(HEARTBEAT);  // the headers go out with it
+            out.flush();
+            while(true) {
+                byte[] event = viewer.take(HEARTBEAT_MILLIS);
+                if(event == null)
+                    break;
+                do {
+                    out.write(event);
+                } while((event = viewer.poll()) != null);  // whatever queued up meanwhile, one flush
+                out.flush();
+            }
+        }
+        catch(IOException exc) {
+            // the browser went away.
+        }
+        finally {
+            viewers.remove(viewer);
+            exchange.close();
+        }
+    }
+
+    // Last-Event-ID from a reconnecting browser, else ?from= from the page, -1 if neither.
+    private static long lastEventId(HttpExchange exchange) {
+        String id = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        String query = exchange.getRequestURI().getQuery();
+        if(id == null && query != null && query.startsWith("from="))
+            id = query.substring(5);
+        try {
+            return id == null ? -1 : Long.parseLong(id.trim());
+        }
+        catch(NumberFormatException exc) {
+            return -1;
+        }
+    }
+
+    public int getViewers() {
+        return viewers.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        for(Viewer viewer : viewers)
+            viewer.close();
+        threads.shutdown();
+    }
+
+    // events waiting to be written to one browser.
+    private static final class Viewer {
+        private final ArrayDeque<byte[]> events = new ArrayDeque<>();
+        private long bytes;
+        private boolean closed;
+
+        synchronized void offer(byte[] event) {
+            if(closed)
+                return;
+            if(bytes + event.length > VIEWER_BYTES) {
+                closed = true;  // too far behind, the browser reconnects and catches up or reloads
+                events.clear();
+                notifyAll();
+            }
+            else {
+                events.add(event);
+                bytes += event.length;
+                if(events.size() == 1)  // its thread waits only on an empty queue
+                    notifyAll();
+            }
+        }
+
+        // the next event, the heartbeat if there was none for timeout, null once closed.
+        synchronized byte[] take(long timeoutMillis) {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            try {
+                for(long left = timeoutMillis; events.isEmpty() && !closed && left > 0; left = end - System.currentTimeMillis())
+                    wait(left);
+            }
+            catch(InterruptedException exc) {
+                return null;
+            }
+            if(closed)
+                return null;
+            byte[] event = events.poll();
+            if(event == null)
+                return HEARTBEAT;
+            bytes -= event.length;
+            return event;
+        }
+
+        synchronized byte[] poll() {
+            byte[] event = events.poll();
+            if(event != null)
+                bytes -= event.length;
+            return event;
+        }
+
+        synchronized void close() {
+            closed = true;
+            events.clear();
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package source;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// chat_logs/Client.html as one page that only grows at its end: head, every fragment
+// appended so far, tail. An append writes the new fragment where the tail starts and the
+// tail again after it, so a message costs its own size however long the conversation
+// is, and the file is a complete page after every message.
+public class TranscriptWriter implements Closeable {
+    private final FileChannel channel;
+    private final byte[] tail;
+    private ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+    private long end;  // where the tail starts
+
+    // starts file afresh, as an empty page.
+    public TranscriptWriter(File file, String head, String tail) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), tail.getBytes(StandardCharsets.UTF_8), 0);
+        write(head.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private TranscriptWriter(FileChannel channel, byte[] tail, long end) {
+        this.channel = channel;
+        this.tail = tail;
+        this.end = end;
+    }
+
+    // carries on with a page written before, fragments go where its tail starts. Throws if
+    // the file does not end with tail, e.g. after a write a crash cut short.
+    public static TranscriptWriter reopen(File file, String tail) throws IOException {
+        byte[] bytes = tail.getBytes(StandardCharsets.UTF_8);
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer found = ByteBuffer.allocate(bytes.length);
+            long end = ch.size() - bytes.length;
+            if(end >= 0)
+                Segment.readFully(ch, found, end);
+            if(end < 0 || found.hasRemaining() || !ByteBuffer.wrap(bytes).equals(found.flip()))
+                throw new IOException(file + " does not end with " + tail);
+            return new TranscriptWriter(ch, bytes, end);
+        }
+        catch(IOException exc) {
+            ch.close();
+            throw exc;
+        }
+    }
+
+    // fragment is already HTML, e.g. a gagawa element's toString().
+    public synchronized void append(String fragment) throws IOException {
+        write(fragment.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if(buffer.capacity() < bytes.length + tail.length)
+            buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, bytes.length + tail.length));
+        buffer.clear();
+        buffer.put(bytes).put(tail).flip();
+        long pos = end;
+        while(buffer.hasRemaining())
+            pos += channel.write(buffer, pos);
+        end += bytes.length;
+    }
+
+    // ends the page with last instead of the tail, e.g. with a link to the next page, and
+    // closes it.
+    public synchronized void finish(String last) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(last.getBytes(StandardCharsets.UTF_8));
+        long pos = end;
+        while(buf.hasRemaining())
+            pos += channel.write(buf, pos);
+        channel.truncate(pos);
+        channel.close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
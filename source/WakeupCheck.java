@@ -0,0 +1,118 @@
+package source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks that a message broadcast from one event loop to connections on the others always
+// goes out, with nothing else going on to wake those loops up. Each round every sender
+// writes one line and the round must be delivered to everyone within a second; a round
+// that is not means a loop slept through its flush wakeup. Exits with 1 if any was.
+// usage: WakeupCheck [rounds] [loops] [senders] [recipients]
+class WakeupCheck {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int loops = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int senders = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int recipients = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        final Conversation conversation = new Conversation();
+        NioServer server = new NioServer(0, loops, new ChatHandler() {
+            @Override
+            public void onOpen(ChatConnection conn) {
+                conversation.join(conn);
+            }
+
+            @Override
+            public void onMessage(ChatConnection conn, ChatMessage msg) {
+                conversation.broadcast(conn, msg);
+            }
+
+            @Override
+            public void onClose(ChatConnection conn) {
+                conversation.leave(conn);
+            }
+        });
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        // every connection reads, a sender gets the other senders' lines too.
+        final Selector selector = Selector.open();
+        SocketChannel[] from = new SocketChannel[senders];
+        for(int i = 0; i < senders + recipients; i++) {
+            SocketChannel ch = SocketChannel.open(address);
+            if(i < senders)
+                from[i] = ch;
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+        }
+        while(server.getOpenConnections() < senders + recipients)
+            Thread.sleep(1);
+
+        final AtomicLong received = new AtomicLong();
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while(selector.isOpen() && selector.select() >= 0) {
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while(keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            buf.clear();
+                            ((SocketChannel) key.channel()).read(buf);
+                            buf.flip();
+                            long lines = 0;
+                            while(buf.hasRemaining())
+                                if(buf.get() == '\n')
+                                    lines++;
+                            received.addAndGet(lines);
+                        }
+                    }
+                }
+                catch(IOException | RuntimeException exc) {
+                    // selector closed, run is over.
+                }
+            }
+        });
+        drainer.start();
+
+        long perRound = (long) senders * (senders + recipients - 1);
+        long expected = 0;
+        int stuck = 0;
+        long start = System.nanoTime();
+        for(int round = 0; round < rounds; round++) {
+            for(int i = 0; i < senders; i++) {
+                ByteBuffer line = ByteBuffer.wrap(("round " + round + "\n").getBytes(StandardCharsets.UTF_8));
+                while(line.hasRemaining())
+                    from[i].write(line);
+            }
+            expected += perRound;
+            long deadline = System.currentTimeMillis() + 1000;
+            while(received.get() < expected && System.currentTimeMillis() < deadline)
+                Thread.yield();
+            if(received.get() < expected) {
+                stuck++;
+                System.out.println("round " + round + ": " + (expected - received.get()) + " of " + perRound + " not delivered");
+                expected = received.get();  // carry on from what did arrive
+            }
+        }
+        System.out.printf("%d rounds, %d loops, %d senders, %d recipients: %d stuck, %.1f us/round%n", rounds, loops,
+                senders, recipients, stuck, (System.nanoTime() - start) / 1e3 / rounds);
+
+        selector.close();
+        drainer.join();
+        for(SocketChannel ch : from)
+            ch.close();
+        server.stop();
+        if(stuck > 0)
+            System.exit(1);
+    }
+}
@@ -22,12 +22,12 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
 THE SOFTWARE.
 */
 
-package com.hp.gagawa.java.elements;
+package source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements;
 
-import com.hp.gagawa.java.FertileNode;
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.FertileNode;
 
-import com.hp.gagawa.java.Node;
-import com.hp.gagawa.java.elements.Text;
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.Node;
+import source.gagawa.trunk.gagawa.src.com.hp.gagawa.java.elements.Text;
 import java.util.List;
 
 public class A extends FertileNode {